@@ -0,0 +1,140 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ============== FormattingBenchmark.java =============
+ *
+ * Measures the text processing done around the translations:
+ * splitTextIntoChunksAndFormat(), unformat() and setNewLines().
+ *
+ * Each method is run on the real-format files in tests/ and on synthetic files
+ * about the size of a full game text file, made by repeating testRealFormat2
+ * with fresh identifiers. Run it from the root of the repository with
+ *   java -cp <classpath> bench.FormattingBenchmark
+ * to get throughput, average time and allocation rate (through the gc profiler).
+ *
+ * JMH does not allow benchmarks in the default package, and classes in a named
+ * package can not import BadTranslation from the default package, so its methods
+ * are looked up once through method handles in setup.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormattingBenchmark {
+
+    private static final String SYNTHETIC_PREFIX = "synthetic-";
+
+    /*
+     * Input to run on. Either a file in tests/ (without .txt), or synthetic-<size in KB>.
+     * global.txt, the largest game file, is a bit under 1 MB.
+     */
+    @Param({"tests/testRealFormat1", "tests/testRealFormat2", "synthetic-256", "synthetic-1024"})
+    public String input;
+
+    private MethodHandle splitTextIntoChunksAndFormat;
+    private MethodHandle unformat;
+    private MethodHandle setNewLines;
+
+    private Path workDir;
+    private String inputFile;     /* Original game text */
+    private String formattedFile; /* inputFile after splitTextIntoChunksAndFormat() */
+    private String outputFile;    /* Scratch file written by each benchmark call */
+    private List<String> chunks;  /* Chunks of formattedFile, standing in for translated chunks */
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Class<?> badTranslation = Class.forName("BadTranslation");
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodType fileToFile = MethodType.methodType(void.class, String.class, String.class);
+        splitTextIntoChunksAndFormat = lookup.findStatic(badTranslation, "splitTextIntoChunksAndFormat", fileToFile);
+        unformat = lookup.findStatic(badTranslation, "unformat", fileToFile);
+        setNewLines = lookup.findStatic(badTranslation, "setNewLines",
+                MethodType.methodType(String.class, String.class));
+        MethodHandle readChunks = lookup.findStatic(badTranslation, "readChunks",
+                MethodType.methodType(List.class, String.class));
+
+        workDir = Files.createTempDirectory("formatting-bench");
+        if (input.startsWith(SYNTHETIC_PREFIX)) {
+            int kilobytes = Integer.parseInt(input.substring(SYNTHETIC_PREFIX.length()));
+            inputFile = workDir.resolve("synthetic.txt").toString();
+            writeSynthetic(inputFile, kilobytes * 1024);
+        }
+        else {
+            inputFile = input + ".txt";
+        }
+        formattedFile = workDir.resolve("formatted.txt").toString();
+        outputFile = workDir.resolve("output.txt").toString();
+
+        splitTextIntoChunksAndFormat.invoke(inputFile, formattedFile);
+        @SuppressWarnings("unchecked")
+        List<String> formattedChunks = (List<String>) readChunks.invoke(formattedFile);
+        chunks = formattedChunks;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (File file : workDir.toFile().listFiles()) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(workDir);
+    }
+
+    @Benchmark
+    public void format() throws Throwable {
+        splitTextIntoChunksAndFormat.invoke(inputFile, outputFile);
+    }
+
+    @Benchmark
+    public void unformat() throws Throwable {
+        unformat.invoke(formattedFile, outputFile);
+    }
+
+    @Benchmark
+    public void setNewLines(Blackhole blackhole) throws Throwable {
+        for (String chunk : chunks) {
+            blackhole.consume((String) setNewLines.invoke(chunk));
+        }
+    }
+
+    /**
+     * Writes a synthetic game text file of about the given size, by repeating
+     * testRealFormat2 with the identifiers numbered so no two repeats are the same.
+     */
+    private static void writeSynthetic(String fileName, int size) throws IOException {
+        String template = Files.readString(Path.of("tests/testRealFormat2.txt"), StandardCharsets.ISO_8859_1);
+        StringBuilder text = new StringBuilder(size + template.length());
+        for (int repeat = 0; text.length() < size; repeat++) {
+            text.append(template.replace("_stg", "_" + repeat + "stg"));
+        }
+        Files.writeString(Path.of(fileName), text, StandardCharsets.ISO_8859_1);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(FormattingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
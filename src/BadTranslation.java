@@ -1,10 +1,13 @@
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 /*
  * ============== BadTranslations.java =============
@@ -31,11 +34,15 @@ import java.util.regex.Matcher;
  *
  *
  * ============== Known Problems =============
- * Some of the produced lines of text are so long that they run off the screen.
- * this is mostly due to google translate's replacement of some > tags with
- * different characters, breaking some of the code in unformat(), which comes
- * after newline method. So the newline method misses some potential spots
- * to place new lines.
+ * Some of the produced lines of text used to be so long that they ran off the screen.
+ * This was mostly due to google translate's replacement of some > tags with
+ * different characters, and to lines being measured in characters instead of
+ * the width of the font. Tags are no longer sent to be translated, and
+ * LineWrapper measures every glyph, but the widths of the font are estimates.
+ *
+ * A translation can still come back with a tag or null character of its own in the
+ * dialogue. Every chunk is checked by the ChunkValidator, and only the broken segments
+ * of a broken chunk are translated again; a chunk that stays broken is left in English.
  *
  * Dialogue boxes asking the player to select between certain options are not properly
  * aligned - but since there are not that many overall this was fixed manually within the
@@ -74,11 +81,73 @@ public class BadTranslation {
     };
 
     /* SPM_TEXT Can be - global, machi, stg1 - stg8 (all within text_files directory)*/
-    private static final String SPM_TEXT = "text_files/stg7"; /* game text file to work with  */
-    private static final String SPM_TEXT_FORMATTED = SPM_TEXT + "_formatted.txt"; /* Formatted text game file */
-    private static final String SPM_TEXT_TRANSLATED = SPM_TEXT + "_translated.txt"; /* Translated formatted text */
-    private static final int MAX_CHARS_PER_LINE = 26; /* Maximum allowed characters per line in output text file */
-    private static final int MAX_CHARS_PER_CHUNK = 950; /* GoogleTranslate has a 5000 char limit, 950 to be safe. */
+    private static final String SPM_TEXT = "text_files/stg7"; /* game text file to work with if none are given */
+    private static final String FORMATTED_SUFFIX = "_formatted.txt"; /* Formatted text game file, for debugging */
+    private static final String TRANSLATED_SUFFIX = "_translated.txt"; /* Translated formatted text, for debugging */
+    private static final String FINAL_SUFFIX = "_finalTranslation.txt"; /* Translated text ready for the game */
+    private static final String JOURNAL_SUFFIX = "_journal.dat"; /* Chunks finished so far, for resuming */
+    private static final String MANIFEST_SUFFIX = "_manifest.dat"; /* Segments finished by the last run */
+    private static final String VARIANT_INFIX = "_variant"; /* Goes before the suffix of each variant's files */
+    private static final String CHAIN_OPTION = "--chain"; /* Argument giving the languages of one variant */
+    private static final String ENDPOINT_OPTION = "--endpoint"; /* Argument giving another URL for the script */
+    private static final String METRICS_FILE = "text_files/run_metrics.json"; /* Summary of the last run */
+    /* Encoding of the game text files, used for reading them and writing the translations.
+     * ISO-8859-1 can be used instead to pass every byte through untouched. */
+    static final Charset GAME_CHARSET = StandardCharsets.UTF_8;
+    private static final int MAX_LINE_WIDTH = 260; /* Widest line of dialogue in pixels, about 26 characters */
+    /* Chunks group messages for the journal and line wrapping; requests are sized by charsPerBatch() */
+    private static final int MAX_CHARS_PER_CHUNK = 950;
+    private static final int MAX_CHARS_PER_REQUEST = 4500; /* Chunks are packed into one request up to this many chars */
+    private static final String EXPANSION_FILE = "text_files/expansion_ratios.dat"; /* Learned growth of each hop */
+    private static final long MIN_EXPANSION_SAMPLE_CHARS = 2000; /* Chars of a hop sent before its growth is used */
+    private static final long MAX_EXPANSION_SAMPLE_CHARS = 1000000; /* Chars of a hop kept between runs */
+    private static final String BATCH_SEPARATOR = "<SEP>"; /* Joins the texts of a request, must match translate.gs */
+    private static final int MAX_CONCURRENT_REQUESTS = 8; /* Maximum number of requests being made at the same time */
+    private static final String CACHE_FILE = "text_files/translation_cache.dat"; /* Translations kept between runs */
+    private static final int MAX_CACHE_ENTRIES = 200000; /* Maximum number of translations kept in the cache */
+    private static final int MAX_REQUESTS_PER_RUN = 5000; /* Requests allowed per run, shared by all files */
+    private static final int MAX_CHUNKS_IN_FLIGHT = 64; /* Chunks of a file held in memory at once */
+    private static final int FORMAT_SEGMENT_BYTES = 64 * 1024; /* Largest part of a file formatted as one task */
+    private static final boolean KEEP_STAGE_FILES = false; /* Keep the formatted and translated files, for debugging */
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10); /* Longest wait for a connection */
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(90); /* Longest wait for one request */
+    private static final double INITIAL_REQUESTS_PER_SECOND = 4; /* Starting rate, raised or lowered as the script answers */
+    private static final double MIN_REQUESTS_PER_SECOND = 0.2; /* Rate is never lowered below this */
+    private static final double MAX_REQUESTS_PER_SECOND = 40; /* Rate is never raised above this */
+    private static final double RATE_INCREASE = 0.1; /* Requests per second added after each successful request */
+    private static final int SERVER_ERRORS_TO_THROTTLE = 3; /* 5xx answers in a row that lower the rate like a 429 */
+    private static final int MAX_ATTEMPTS = 6; /* Times one request is sent before its chunks are given up on */
+    private static final int MAX_REPAIR_ATTEMPTS = 2; /* Times a segment translated with broken tags is sent again */
+    private static final Duration BASE_BACKOFF = Duration.ofMillis(500); /* Longest wait before the first retry */
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(60); /* Longest wait before any retry */
+    private static final double HEDGE_PERCENTILE = 95; /* A request not answered by this percentile is sent again */
+    private static final int HEDGE_MIN_SAMPLES = 20; /* Requests of a language pair timed before any is sent again */
+    private static final double MAX_HEDGE_FRACTION = 0.05; /* Most requests sent again, 0 to never send them again */
+
+    /* Translations done in this and earlier runs, checked before asking the translator */
+    private static TranslationCache cache;
+
+    /* How much longer each hop makes its text, learned in this and earlier runs */
+    private static ExpansionRatios expansion;
+
+    /* Requests made so far in this run, across all files */
+    private static RequestBudget budget;
+
+    /* Breaks the translated chunks into lines that fit the dialogue box, by estimated glyph widths */
+    static final LineWrapper LINE_WRAPPER = new LineWrapper(GlyphWidths.dialogueFont(), MAX_LINE_WIDTH);
+
+    /* Formats whole files in parts on every core, in splitTextIntoChunksAndFormat() and unformat() */
+    static final ParallelFormatter FORMATTER = new ParallelFormatter(ForkJoinPool.commonPool(), FORMAT_SEGMENT_BYTES);
+
+    /* Chains of languages to translate through, one variant of the translation each */
+    private static LanguageTree languages = new LanguageTree(DEFAULT_LANG, List.<String[]>of(LANGS));
+
+    /* Timings and counters of this run */
+    static Metrics metrics = new Metrics();
+
+    /* Backend sending the requests to the translation script, retrying them within the rate limit,
+     * with the slowest sends sent again */
+    private static Translator translator;
 
     /*****************************************
      * METHODS
@@ -86,130 +155,362 @@ public class BadTranslation {
 
 
 
+    /**
+     * Translates the game text files given as arguments. Each argument can be a text file
+     * or a directory, in which case every .txt game file in it is translated. With no
+     * files, SPM_TEXT is translated.
+     *
+     * Several variants can be made in one run by giving their chains of languages with
+     * --chain, e.g. --chain af,pt,sw --chain af,pt,ru. Variant n of a file is written to
+     * <file>_variant<n>_finalTranslation.txt, and hops shared by the start of several chains
+     * are only translated once. With no --chain, LANGS is used.
+     */
     public static void main(String[] args) throws IOException {
 
+        List<String> paths = new ArrayList<>();
+        List<String[]> chains = new ArrayList<>();
+        String endpoint = Config.Script1_URL;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals(CHAIN_OPTION) && i + 1 < args.length) {
+                chains.add(args[++i].split(","));
+            }
+            else if (args[i].equals(ENDPOINT_OPTION) && i + 1 < args.length) {
+                endpoint = args[++i];
+            }
+            else {
+                paths.add(args[i]);
+            }
+        }
+        if (!chains.isEmpty()) {
+            languages = new LanguageTree(DEFAULT_LANG, chains);
+            System.out.println("Translating " + languages);
+        }
 
-        String res;
-        StringBuilder resBuilder = new StringBuilder();
-        String currLine;
-
-        File inFile;
-        FileWriter writer = null;
-        BufferedReader scanner = null;
-
-        /* Format the original file to protect important identifiers and such from translation */
-        splitTextIntoChunksAndFormat(SPM_TEXT + ".txt", SPM_TEXT_FORMATTED);
+        List<String> textNames = findTextFiles(!paths.isEmpty() ? paths.toArray(new String[0])
+                : new String[] { SPM_TEXT + ".txt" });
+
+        cache = new TranslationCache(CACHE_FILE, MAX_CACHE_ENTRIES);
+        budget = new RequestBudget(MAX_REQUESTS_PER_RUN);
+        expansion = new ExpansionRatios(EXPANSION_FILE, MIN_EXPANSION_SAMPLE_CHARS, MAX_EXPANSION_SAMPLE_CHARS);
+        RateLimiter limiter = new RateLimiter(INITIAL_REQUESTS_PER_SECOND, MIN_REQUESTS_PER_SECOND,
+                MAX_REQUESTS_PER_SECOND, RATE_INCREASE, MAX_CONCURRENT_REQUESTS, SERVER_ERRORS_TO_THROTTLE);
+        /* Hedges only the send itself, and only with a token the limiter has free right away */
+        HedgingTranslator hedging = new HedgingTranslator(
+                new HttpClientTranslator(endpoint, CONNECT_TIMEOUT, REQUEST_TIMEOUT),
+                HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES, MAX_HEDGE_FRACTION,
+                () -> limiter.tryAcquire() && budget.tryAcquire());
+        RetryingTranslator retrying = new RetryingTranslator(hedging, limiter, budget, MAX_ATTEMPTS, BASE_BACKOFF,
+                MAX_BACKOFF);
+        translator = retrying;
+        TranslationEngine engine = new TranslationEngine(MAX_CONCURRENT_REQUESTS, BadTranslation::charsPerBatch,
+                BATCH_SEPARATOR.length(), MAX_REPAIR_ATTEMPTS);
 
         try {
-            inFile = new File(SPM_TEXT_FORMATTED);
-            File outFile = new File("output.txt");
-            scanner = new BufferedReader(new FileReader(inFile));
+            /* Start every file first, so all files are translated at the same time on the same engine */
+            List<TranslationPipeline> pipelines = new ArrayList<>();
+            for (String textName : textNames) {
+
+                /* Chunks finished by an earlier run that ran out of quota do not need translating again */
+                ChunkJournal journal = new ChunkJournal(textName + JOURNAL_SUFFIX, languageChain());
+
+                /* Messages not changed since the last run are not translated again */
+                TranslationManifest manifest = new TranslationManifest(textName + MANIFEST_SUFFIX, languageChain(),
+                        variantCount());
+
+                TranslationPipeline pipeline = new TranslationPipeline(textName + ".txt",
+                        variantFileNames(textName, FINAL_SUFFIX), journal, manifest, engine, MAX_CHUNKS_IN_FLIGHT,
+                        KEEP_STAGE_FILES ? textName + FORMATTED_SUFFIX : null,
+                        KEEP_STAGE_FILES ? variantFileNames(textName, TRANSLATED_SUFFIX) : null);
+                pipeline.start();
+                pipelines.add(pipeline);
+            }
 
-            writer = new FileWriter(SPM_TEXT_TRANSLATED);
+            for (int i = 0; i < pipelines.size(); i++) {
+                int untranslatedChunks = pipelines.get(i).await();
+                System.out.println(textNames.get(i) + ": " + pipelines.get(i).changes());
+                if (untranslatedChunks > 0) {
+                    System.out.println(textNames.get(i) + ": " + untranslatedChunks + " of "
+                            + pipelines.get(i).chunkCount()
+                            + " chunk(s) could not be translated, run again to retry only those chunks.");
+                }
+            }
         }
-        catch (IOException e) {
-            System.out.println("Error in Main while setting up IO: " + e.getMessage());
+        finally {
+            engine.shutdown();
+            cache.close();
+            expansion.save();
         }
 
-        while ((currLine = scanner.readLine()) != null) {
+        metrics.writeJson(METRICS_FILE, budget.used(), retrying.retries(), retrying.throttled(),
+                hedging.hedges(), hedging.hedgesWon());
+        System.out.println("Made " + budget.used() + " requests for " + textNames.size() + " file(s), "
+                + retrying.retries() + " of them retries (" + retrying.throttled() + " throttled), "
+                + hedging.hedges() + " sent again for being slow (" + hedging.hedgesWon() + " answered first), "
+                + budget.remaining() + " left in the budget. Ended at "
+                + String.format("%.1f", limiter.rate()) + " requests per second. Timings are in " + METRICS_FILE);
+        System.out.println("Batches now hold up to " + charsPerBatch() + " characters, the longest text sent is "
+                + String.format("%.2f", languages.worstExpansion(expansion)) + " times as long as the English.");
+    }
 
-            resBuilder.append(currLine);
-            System.out.println(currLine);
+    /**
+     * Sets up translating for callers other than main(), e.g. the tests. Texts go through the
+     * given chains with the given translator and cache, without learned expansion ratios, and
+     * are counted in new metrics.
+     *
+     * @param newTranslator backend to send the requests to.
+     * @param chains languages of each variant, the home language left out.
+     * @param newCache cache of earlier translations, or null for none.
+     */
+    static void useTranslator(Translator newTranslator, List<String[]> chains, TranslationCache newCache) {
+        translator = newTranslator;
+        languages = new LanguageTree(DEFAULT_LANG, chains);
+        metrics = new Metrics();
+        cache = newCache;
+        expansion = null;
+    }
 
+    /**
+     * @return the name of the given file for every variant, just textName + suffix if there is only one.
+     */
+    private static List<String> variantFileNames(String textName, String suffix) {
+        if (languages.variantCount() == 1) {
+            return List.of(textName + suffix);
+        }
 
-            /* If at end of chunk or file, begin translating the data in resBuilder */
-            /* scanner seems to remove the newline character, so empty string */
-            if (currLine.equals("") || !scanner.ready()) {
-                res = multipleTranslate(resBuilder.toString());
+        List<String> fileNames = new ArrayList<>();
+        for (int variant = 1; variant <= languages.variantCount(); variant++) {
+            fileNames.add(textName + VARIANT_INFIX + variant + suffix);
+        }
+        return fileNames;
+    }
 
-                /*
-                 * The entire text is now in one line. Separate the text into more than one line, using a
-                 * limit per line
-                 */
-                res = setNewLines(res);
-                resBuilder = new StringBuilder(); /* Reset for next string */
-                writer.append(res);
+    /**
+     * Finds the game text files to translate.
+     *
+     * @param paths text files and directories holding text files.
+     * @return names of the game text files without the .txt extension, directories sorted by name.
+     * @throws IOException if a path does not exist.
+     */
+    static List<String> findTextFiles(String[] paths) throws IOException {
+        List<String> textNames = new ArrayList<>();
+
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.isDirectory()) {
+                File[] textFiles = file.listFiles((dir, name) -> name.endsWith(".txt") && !isGeneratedFile(name));
+                if (textFiles == null) {
+                    throw new IOException("Could not list directory " + path);
+                }
+                Arrays.sort(textFiles);
+                for (File textFile : textFiles) {
+                    textNames.add(stripExtension(textFile.getPath()));
+                }
+            }
+            else if (file.isFile()) {
+                textNames.add(stripExtension(path));
+            }
+            else {
+                throw new IOException("No such file or directory: " + path);
             }
-
-
         }
 
-        scanner.close();
-        writer.close();
+        return textNames;
+    }
 
-        /* Now reformat the translated result back to the original's, so the game can read
-         * the text file properly
-         */
-        unformat(SPM_TEXT_TRANSLATED, SPM_TEXT + "_finalTranslation.txt");
-
-        /* Delete the formatted file since it was just temporary for input for the translator */
-       if (!deleteTextFile(SPM_TEXT_FORMATTED)) {
-            System.out.println("Oh no! Failed to delete: " + SPM_TEXT_FORMATTED);
-       }
-        if (!deleteTextFile(SPM_TEXT_TRANSLATED)) {
-            System.out.println("Oh no! Failed to delete: " + SPM_TEXT_TRANSLATED);
-        }
+    /**
+     * @return true if the file name is one of the files made by this program, not a game text file.
+     */
+    private static boolean isGeneratedFile(String fileName) {
+        return fileName.endsWith(FORMATTED_SUFFIX) || fileName.endsWith(TRANSLATED_SUFFIX)
+                || fileName.endsWith(FINAL_SUFFIX);
+    }
+
+    private static String stripExtension(String fileName) {
+        return fileName.endsWith(".txt") ? fileName.substring(0, fileName.length() - ".txt".length()) : fileName;
     }
 
     /**
-     * Performs a translation on a string of text from one language to another using Google Translate API.
-     * @param langFrom language of input string, i.e. translated from.
-     * @param langTo language to translate the string to i.e. translate to.
-     * @param text String to perform the translation on.
-     * @return a string that represents the translated text.
+     * Performs translations on several strings of text from one language to another using Google
+     * Translate API. Texts that were translated before are taken from the cache, and the rest are
+     * packed into as few requests as possible, each holding up to MAX_CHARS_PER_REQUEST characters.
+     * The requests are all sent at once through the translator.
+     * @param langFrom language of input strings, i.e. translated from.
+     * @param langTo language to translate the strings to i.e. translate to.
+     * @param texts Strings to perform the translation on.
+     * @return the translated texts, in the same order as the given texts.
      * @throws IOException upon an issue in making a connection to the translation script and API
      */
-    private static String translate(String langFrom, String langTo, String text) throws IOException {
-
-        String urlStr = Config.Script1_URL +
-                "?q=" + URLEncoder.encode(text, "UTF-8") +
-                "&target=" + langTo +
-                "&source=" + langFrom;
-        URL url = new URL(urlStr);
-        StringBuilder response = new StringBuilder();
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setRequestProperty("User-Agent", "Mozilla/5.0");
-        BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-        String inputLine;
-        while ((inputLine = in.readLine()) != null) {
-            response.append(inputLine);
+    static List<String> translateBatch(String langFrom, String langTo, List<String> texts) throws IOException {
+        return translateBatch(langFrom, langTo, texts, false);
+    }
+
+    /**
+     * @param alone whether to skip the cache and send every text in a request of its own.
+     */
+    private static List<String> translateBatch(String langFrom, String langTo, List<String> texts, boolean alone)
+        throws IOException {
+
+        String[] results = new String[texts.size()];
+        List<List<Integer>> requests = new ArrayList<>();
+        List<Integer> request = new ArrayList<>();
+        int requestChars = 0;
+
+        for (int i = 0; i < texts.size(); i++) {
+
+            /* No need to use up a request on a translation that was already done before */
+            if (!alone) {
+                String cached = (cache != null) ? cache.get(langFrom, langTo, texts.get(i)) : null;
+                if (cached != null) {
+                    metrics.cacheHit();
+                    results[i] = cached;
+                    continue;
+                }
+                metrics.cacheMiss();
+            }
+
+            /* Start a new request if this text would not fit in the current one */
+            int textChars = texts.get(i).length() + BATCH_SEPARATOR.length();
+            if (!request.isEmpty() && (alone || requestChars + textChars > MAX_CHARS_PER_REQUEST)) {
+                requests.add(request);
+                request = new ArrayList<>();
+                requestChars = 0;
+            }
+            request.add(i);
+            requestChars += textChars;
+        }
+        if (!request.isEmpty()) {
+            requests.add(request);
+        }
+
+        List<List<String>> requestTexts = new ArrayList<>(requests.size());
+        List<CompletableFuture<List<String>>> replies = new ArrayList<>(requests.size());
+        for (List<Integer> positions : requests) {
+            List<String> batch = new ArrayList<>(positions.size());
+            for (int i : positions) {
+                batch.add(texts.get(i));
+            }
+
+            requestTexts.add(batch);
+            Metrics.RequestEvent event = Metrics.beginRequest(langFrom, langTo, batch);
+            replies.add(translator.translateAsync(langFrom, langTo, batch)
+                    .whenComplete((translated, error) -> metrics.endRequest(event, error == null)));
+        }
+
+        /* Store each translation in the results array and the cache, and learn how much longer the hop made it */
+        for (int r = 0; r < requests.size(); r++) {
+            List<String> translated = Translator.await(replies.get(r));
+
+            /* Any other number of parts can not be matched back to the texts they came from */
+            if (translated.size() != requests.get(r).size()) {
+                throw new IOException("Asked for " + requests.get(r).size() + " translations from " + langFrom
+                        + " to " + langTo + " but got " + translated.size());
+            }
+            long sentChars = 0;
+            long receivedChars = 0;
+            for (int j = 0; j < translated.size(); j++) {
+                results[requests.get(r).get(j)] = translated.get(j);
+                if (cache != null) {
+                    cache.put(langFrom, langTo, requestTexts.get(r).get(j), translated.get(j));
+                }
+                sentChars += requestTexts.get(r).get(j).length();
+                receivedChars += translated.get(j).length();
+            }
+            if (expansion != null) {
+                expansion.record(langFrom, langTo, sentChars, receivedChars);
+            }
         }
-        in.close();
-        return response.toString();
 
+        return Arrays.asList(results);
     }
 
     /**
-     * Calls the translate() function multiple times.
-     * @param text text being translated
-     * @return the resulting text that has been translated many times
-     * @throws IOException upon an issue in making a connection to the translation script and API
+     * Reads a file produced by splitTextIntoChunksAndFormat() and separates it into
+     * its chunks. Chunks are separated by an empty line, and each chunk is joined into
+     * one line since that is how it is sent to the translator.
+     *
+     * @param formattedFileName name of the formatted file to read from.
+     * @return the chunks of the file, in order.
+     * @throws IOException upon an issue reading the file.
      */
-    private static String multipleTranslate(String text) throws IOException {
-        String res = "error";
+    public static List<String> readChunks(String formattedFileName) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder chunkBuilder = new StringBuilder();
+        CharSequence currLine;
 
-        try {
+        GameTextReader scanner = new GameTextReader(formattedFileName, GAME_CHARSET);
+        while ((currLine = scanner.readLine()) != null) {
 
-            /* Translate from english to the first language in array using given text */
-            res = translate(DEFAULT_LANG, LANGS[0], text);
+            chunkBuilder.append(currLine);
 
-            /* Translate from/to each language in LANGS array */
-            for (int lang_i = 0; lang_i < LANGS.length - 1; lang_i++) {
-                res = translate(LANGS[lang_i], LANGS[lang_i+1], res);
+            /* If at end of chunk, the data in chunkBuilder is a full chunk */
+            /* scanner removes the newline character, so empty string */
+            if (currLine.length() == 0) {
+                chunks.add(chunkBuilder.toString());
+                chunkBuilder = new StringBuilder(); /* Reset for next chunk */
             }
+        }
+        scanner.close();
 
-            /* Translate from final language in LANGS back to english */
-            res = translate(LANGS[LANGS.length - 1], DEFAULT_LANG, res);
-
+        /* The end of the file ends the last chunk */
+        if (chunkBuilder.length() > 0) {
+            chunks.add(chunkBuilder.toString());
         }
-        catch (IOException e) {
-            System.out.println("=========ERROR: " + e.getMessage());
-            System.out.println("for the text : " + text);
-            return text;
+
+        return chunks;
+    }
+
+    /**
+     * Calls the translateBatch() function multiple times, once for every hop of the chains
+     * of languages. All texts go through each hop together, so each hop costs as few requests
+     * as possible, and hops shared by several chains are only done once.
+     * @param texts texts being translated
+     * @return for every variant, the resulting texts that have been translated many times, in the same order
+     * @throws IOException upon an issue in making a connection to the translation script and API
+     */
+    static List<List<String>> multipleTranslate(List<String> texts) throws IOException {
+        return languages.translate(texts, BadTranslation::translateBatch);
+    }
+
+    /**
+     * Translates texts through the chains again after their translation came back broken. Each
+     * text goes in a request of its own instead of being joined with others, and the cache is
+     * skipped since it holds the broken translation; the new translations replace it there.
+     * @param texts texts being translated again
+     * @return for every variant, the translated texts, in the same order
+     * @throws IOException upon an issue in making a connection to the translation script and API
+     */
+    static List<List<String>> retranslate(List<String> texts) throws IOException {
+        return languages.translate(texts,
+                (langFrom, langTo, hopTexts) -> translateBatch(langFrom, langTo, hopTexts, true));
+    }
+
+    /**
+     * Sizes the batches of the engine so that the texts of a batch still fit in one request at the
+     * hop where they are the longest, from the expansion ratios learned so far. A hop that grows
+     * its texts more than expected is not lost, translateBatch() just sends it in more requests.
+     *
+     * @return most characters the segments of one batch may hold, in the home language.
+     */
+    static int charsPerBatch() {
+        if (expansion == null) {
+            return MAX_CHARS_PER_REQUEST;
         }
+        return (int) (MAX_CHARS_PER_REQUEST / languages.worstExpansion(expansion));
+    }
 
+    /**
+     * @return number of variants multipleTranslate() hands back for every text.
+     */
+    static int variantCount() {
+        return languages.variantCount();
+    }
 
-        return res; /* Return resulting string of the multiple translations */
+    /**
+     * @return every language a chunk goes through in multipleTranslate(), in order,
+     * e.g. "en af pt ... it en", with the chains of several variants separated by |.
+     */
+    static String languageChain() {
+        return languages.describe();
     }
 
 
@@ -228,72 +529,16 @@ public class BadTranslation {
      * <ta
      * gs> which will cause some problems.
      *
+     * The work is done by LINE_WRAPPER, which measures each line against the
+     * width of the dialogue box. Callers wrapping many chunks can call it
+     * directly with a buffer they reuse.
+     *
      * @param chunk translated text to add new lines to.
      * @return chunk string but with formatted new lines
      */
     public static String setNewLines(String chunk) {
-
-        int strPos = 0;
-        int nestedBracketCount = 0;
-        int nonTaggedCountInLine = 0;
-        boolean previousWasTag = true;
-        StringBuilder strBuilder = new StringBuilder();
-
-        strBuilder.append("\n");
-        while (strPos < chunk.length()) {
-
-            char currChar = chunk.charAt(strPos);
-
-            if (currChar == '<') {
-                nestedBracketCount++;
-                if (!previousWasTag) strBuilder.append("\n");
-                previousWasTag = true;
-                nonTaggedCountInLine = 0;
-            }
-            if (currChar == '>') {
-                nestedBracketCount--;
-            }
-
-            if (nestedBracketCount == 0 && currChar != '>') {
-                previousWasTag = false;
-                nonTaggedCountInLine++;
-
-                if (nonTaggedCountInLine >= MAX_CHARS_PER_LINE) {
-                    int endPos = strPos + 1;
-
-                    /* Forward strPos if it does not end on a space, to prevent
-                     * cases where words are cut off between lines like
-                     *
-                     * "Hello, how are you doing tod
-                     * ay?
-                     */
-                    while (endPos < chunk.length() &&
-                        chunk.charAt(endPos) != ' ' && chunk.charAt(endPos) != '<') {
-                        endPos++;
-                    }
-
-
-                    strBuilder.append(chunk.substring(strPos,endPos));
-                    strBuilder.append("\n");
-                    strPos = endPos;
-                    nonTaggedCountInLine = 0;
-                }
-
-                else {
-                    strBuilder.append(currChar);
-                    strPos++;
-                }
-            }
-
-            else {
-                strBuilder.append(currChar);
-                strPos++;
-            }
-
-
-
-        }
-
+        StringBuilder strBuilder = new StringBuilder(chunk.length() + chunk.length() / 8);
+        LINE_WRAPPER.wrap(chunk, strBuilder);
         return strBuilder.toString();
     }
 
@@ -317,66 +562,153 @@ public class BadTranslation {
      * behavior as well, so they are replaced by <placeholder>. These tag replacements are
      * then replaced again by the original characters after translation.
      *
+     * The file is formatted in parts on every core by FORMATTER.
+     *
      * @param originalFileName Name of the file
      * @param newFileName
      */
     public static void splitTextIntoChunksAndFormat(String originalFileName, String newFileName)
         throws IOException{
 
-        File inFile;
-        BufferedReader scanner = null;
-        FileWriter writer = null;
+        splitTextIntoChunksAndFormat(originalFileName, newFileName, FORMATTER);
 
-        try {
-            inFile = new File(originalFileName);
-            scanner = new BufferedReader(new FileReader(inFile));
-            writer = new FileWriter(newFileName);
-        }
-        catch (IOException e) {
-            System.out.println("splitTextIntoChunksFormat() error while setting I/O: " + e.getMessage());
+    }
+
+    /**
+     * Same as splitTextIntoChunksAndFormat(String, String), with the file formatted in parts
+     * by the given formatter. The output is the same.
+     *
+     * @param originalFileName Name of the file
+     * @param newFileName
+     * @param formatter formats the parts of the file.
+     */
+    public static void splitTextIntoChunksAndFormat(String originalFileName, String newFileName,
+        ParallelFormatter formatter) throws IOException {
+
+        try (GameTextReader scanner = new GameTextReader(originalFileName, GAME_CHARSET);
+             GameTextWriter writer = new GameTextWriter(newFileName, GAME_CHARSET)) {
+            formatIntoChunks(scanner, originalFileName, formatter, writerSink(writer));
         }
+    }
 
-        /* RegEx to find identifiers. (any number of any char)_(any number of any char) */
-        Pattern underscorePattern = Pattern.compile("\\w*_\\w*");
-        Matcher matcher;
+    private static ChunkSink writerSink(GameTextWriter writer) {
+        return new ChunkSink() {
+            @Override
+            public void line(CharSequence formattedLine) throws IOException {
+                writer.append(formattedLine);
+                writer.append("\n");
+            }
+
+            @Override
+            public void endOfChunk() throws IOException {
+                writer.append("\n");
+            }
+        };
+    }
+
+    /**
+     * Receives the formatted text made by formatIntoChunks(), one line at a time.
+     */
+    interface ChunkSink {
+        /**
+         * @param formattedLine next formatted line. Only valid during the call, its buffer is reused.
+         */
+        void line(CharSequence formattedLine) throws IOException;
+
+        /**
+         * Called between two chunks, when adding the next line would make the chunk too long.
+         */
+        void endOfChunk() throws IOException;
+    }
+
+    /**
+     * Does the work of splitTextIntoChunksAndFormat() on text that is already open, handing
+     * each formatted line and chunk boundary to the sink instead of writing them to a file.
+     *
+     * The time spent formatting is added to the FORMAT stage of the metrics.
+     *
+     * @param scanner original game text to format.
+     * @param fileName name of the original file, for the metrics.
+     * @param sink receives the formatted lines and chunk boundaries.
+     * @throws IOException upon an issue reading the text or in the sink.
+     */
+    static void formatIntoChunks(GameTextReader scanner, String fileName, ChunkSink sink) throws IOException {
+
+        /* Reused for every line, so formatting a line does not allocate */
+        StringBuilder formatted = new StringBuilder();
 
         int charCount = 0;
-        String line;
+        long formatNanos = 0;
+        long formatChars = 0;
+        CharSequence line;
         while ((line = scanner.readLine()) != null) {
 
-            //String line = scanner.nextLine();
-            String identifier;
-            System.out.println(line);
+            /* Enclose identifiers in brackets, and replace null chars and <p> with tags */
+            long start = System.nanoTime();
+            formatted.setLength(0);
+            GameTextLexer.format(line, formatted);
+            formatNanos += System.nanoTime() - start;
+            formatChars += line.length();
 
-            /* Enclose strings between null bytes in brackets */
-            matcher = underscorePattern.matcher(line);
-            while (matcher.find()) {
-                identifier = matcher.group(0);
-                line = line.replaceFirst(identifier, "<" + identifier + ">");
-            }
+            charCount = addToChunk(formatted, charCount, sink);
+        }
 
+        metrics.stage(Metrics.Stage.FORMAT, formatNanos, formatChars);
+        Metrics.commitStage(fileName, Metrics.Stage.FORMAT, formatNanos, formatChars);
+    }
 
-            /* Replace all null chars with <NUL> */
-            line = line.replaceAll("\0", "<NUL>");
-            /* Replace all <p> with <placeholder> */
-            line = line.replaceAll("<p>", "<placeholder>");
+    /**
+     * Same as formatIntoChunks(GameTextReader, String, ChunkSink), with the file formatted in
+     * parts on several threads. The sink gets the same lines and chunks, but only once the
+     * whole file is formatted.
+     *
+     * @param scanner reader of the whole file, which is not read from, only sliced.
+     * @param fileName name of the file, for the metrics.
+     * @param formatter formats the parts of the file.
+     * @param sink receives the formatted lines and the ends of the chunks, in order.
+     * @throws IOException upon an issue reading the file or from the sink.
+     */
+    static void formatIntoChunks(GameTextReader scanner, String fileName, ParallelFormatter formatter,
+        ChunkSink sink)
+        throws IOException {
 
-            /* Character count check, if addition of this line surpasses the char count, then
-             * append a new line and begin the next chunk.
-             */
-            if (charCount + line.length() > MAX_CHARS_PER_CHUNK && charCount != 0) {
-                writer.append("\n");
-                charCount = 0;
-            }
+        List<ParallelFormatter.Segment> segments = formatter.format(scanner);
 
-            charCount += line.length();
-            writer.append(line);
-            writer.append("\n");
+        int charCount = 0;
+        long formatNanos = 0;
+        long formatChars = 0;
+        for (ParallelFormatter.Segment segment : segments) {
+            for (int i = 0; i < segment.lineCount(); i++) {
+                charCount = addToChunk(segment.line(i), charCount, sink);
+            }
+            formatNanos += segment.nanos();
+            formatChars += segment.chars();
         }
 
-        scanner.close();
-        writer.close();
+        metrics.stage(Metrics.Stage.FORMAT, formatNanos, formatChars);
+        Metrics.commitStage(fileName, Metrics.Stage.FORMAT, formatNanos, formatChars);
+    }
+
+    /**
+     * Adds a formatted line to the current chunk, ending the chunk first if the line does not fit.
+     *
+     * @param formattedLine the line.
+     * @param charCount characters in the current chunk.
+     * @param sink receives the line.
+     * @return characters in the current chunk, the line included.
+     */
+    private static int addToChunk(CharSequence formattedLine, int charCount, ChunkSink sink) throws IOException {
+
+        /* Character count check, if addition of this line surpasses the char count, then
+         * append a new line and begin the next chunk.
+         */
+        if (charCount + formattedLine.length() > MAX_CHARS_PER_CHUNK && charCount != 0) {
+            sink.endOfChunk();
+            charCount = 0;
+        }
 
+        sink.line(formattedLine);
+        return charCount + formattedLine.length();
     }
 
 
@@ -388,66 +720,45 @@ public class BadTranslation {
      * <NULL> is replaced with the null character.
      * All new lines are deleted.
      *
+     * The file is unformatted in parts on every core by FORMATTER.
+     *
      * @param inFileName name of the file to read from
      * @param outFileName name of the file to write to
      */
     public static void unformat(String inFileName, String outFileName)
         throws IOException {
-        File inFile = new File(inFileName);
-        BufferedReader scanner = null;
-        FileWriter writer = null;
-
-        try {
-            scanner = new BufferedReader(new FileReader(inFile));
-            writer = new FileWriter(outFileName);
-        }
-        catch (IOException e) {
-            System.out.println("unformat() error while setting I/O: " + e.getMessage());
-        }
 
-        /* RegEx to find identifiers. >(any number of any char)_(any number of any char)< */
-        Pattern underscorePattern = Pattern.compile("<\\w*_\\w*>");
-        Matcher matcher;
-        String line;
-        while ((line = scanner.readLine()) != null) {
+        unformat(inFileName, outFileName, FORMATTER);
+    }
 
-            String identifier;
+    /**
+     * Same as unformat(String, String), with the file unformatted in parts by the given
+     * formatter. The output is the same.
+     *
+     * @param inFileName file with the formatted text.
+     * @param outFileName file to write the unformatted text to.
+     * @param formatter unformats the parts of the file.
+     */
+    public static void unformat(String inFileName, String outFileName, ParallelFormatter formatter)
+        throws IOException {
 
-            /* Ignores new line separations created by splitTextIntoChunks */
-            if (!line.equals("")) {
+        long unformatNanos = 0;
+        long unformatChars = 0;
+        try (GameTextReader scanner = new GameTextReader(inFileName, GAME_CHARSET);
+             GameTextWriter writer = new GameTextWriter(outFileName, GAME_CHARSET)) {
 
-                /* remove the <> tags from identifiers */
-                matcher = underscorePattern.matcher(line);
-                while (matcher.find()) {
-                    identifier = matcher.group(0);
-                    line = line.replaceFirst(identifier, identifier.substring(1, identifier.length() - 1));
+            for (ParallelFormatter.Segment segment : formatter.unformat(scanner)) {
+                for (int i = 0; i < segment.lineCount(); i++) {
+                    writer.append(segment.line(i));
+                    writer.append("\n");
                 }
-
-                /* Replace all <NUL> with null char */
-                line = line.replaceAll("<NUL>", "\0");
-                /* Replace all <p> with <placeholder> */
-                line = line.replaceAll("<placeholder>", "<p>");
-
-                /* For some reason Google translate replaces apostrophes with " &#39; "
-                *  reverse this effect. */
-                line = line.replaceAll("&#39;", "'");
-
-                /* Similar as above, fixing strange output of google translate for quotations */
-                line = line.replaceAll("&quot;", "\"");
-
-                /* Replace " &gt;" and "&gt;f" with > */
-                line = line.replaceAll("&gt;f", ">");
-                line = line.replaceAll(" &gt;", ">");
-                line = line.replaceAll("&gt;", ">");
-
-                writer.append(line);
-                writer.append("\n");
+                unformatNanos += segment.nanos();
+                unformatChars += segment.chars();
             }
-
         }
 
-        writer.close();
-        scanner.close();
+        metrics.stage(Metrics.Stage.UNFORMAT, unformatNanos, unformatChars);
+        Metrics.commitStage(inFileName, Metrics.Stage.UNFORMAT, unformatNanos, unformatChars);
     }
 
 
@@ -0,0 +1,156 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * ============== ChunkJournal.java =============
+ *
+ * Records every chunk of a formatted file once it has made it through all the
+ * translation hops, so a run that was cut short by the daily quota can pick up
+ * where it left off the next day instead of starting from the first chunk.
+ *
+ * Each record is
+ *   [int chunk index][32 byte SHA-256 of the chain and chunk][int length][UTF-8 translated chunk]
+ * and is forced to disk as soon as it is written. The hash makes sure a record
+ * is only reused for the exact same chunk translated through the exact same
+ * chain of languages, so changing LANGS or the game text never picks up stale
+ * translations.
+ */
+public class ChunkJournal implements Closeable {
+
+    private final File file;
+    private final String chain;
+    private final Map<Integer, Entry> finished = new HashMap<>();
+    private final FileChannel channel;
+
+    private static class Entry {
+        final byte[] hash;
+        final String translated;
+
+        Entry(byte[] hash, String translated) {
+            this.hash = hash;
+            this.translated = translated;
+        }
+    }
+
+    /**
+     * Opens the journal stored in the given file, creating the file if it does not exist yet.
+     *
+     * @param fileName name of the journal file.
+     * @param chain the languages the chunks are translated through, e.g. "en af pt ... en".
+     * @throws IOException upon an issue reading or creating the journal file.
+     */
+    public ChunkJournal(String fileName, String chain) throws IOException {
+        this.file = new File(fileName);
+        this.chain = chain;
+
+        long validLength = load();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        /* Cut off a record that was only half written, e.g. if the program was killed mid-write */
+        channel.truncate(validLength);
+        channel.position(validLength);
+    }
+
+    /**
+     * Looks up a chunk that was finished in an earlier run.
+     *
+     * @param index position of the chunk within the formatted file.
+     * @param chunk formatted text of the chunk.
+     * @return the translated chunk, or null if it was not finished yet.
+     */
+    public synchronized String get(int index, String chunk) {
+        Entry entry = finished.get(index);
+        if (entry == null || !Arrays.equals(entry.hash, Hashes.sha256(chain, chunk))) {
+            return null;
+        }
+        return entry.translated;
+    }
+
+    /**
+     * Records a finished chunk, and makes sure it is on disk before returning.
+     *
+     * @param index position of the chunk within the formatted file.
+     * @param chunk formatted text of the chunk.
+     * @param translated the chunk after going through all the translation hops.
+     * @throws IOException upon an issue writing to the journal file.
+     */
+    public synchronized void record(int index, String chunk, String translated) throws IOException {
+        byte[] hash = Hashes.sha256(chain, chunk);
+        byte[] textBytes = translated.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + hash.length + 4 + textBytes.length);
+        buffer.putInt(index).put(hash).putInt(textBytes.length).put(textBytes);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+
+        finished.put(index, new Entry(hash, translated));
+    }
+
+    /**
+     * @return number of chunks recorded as finished.
+     */
+    public synchronized int size() {
+        return finished.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Closes the journal and deletes its file. Used once the whole file is translated,
+     * since there is nothing left to resume.
+     *
+     * @return true if the journal file was deleted.
+     * @throws IOException upon an issue closing the journal file.
+     */
+    public synchronized boolean delete() throws IOException {
+        close();
+        return file.delete();
+    }
+
+    /**
+     * Reads every complete record of the journal file into memory.
+     *
+     * @return length in bytes of the part of the file holding complete records.
+     */
+    private long load() throws IOException {
+        long validLength = 0;
+        if (!file.exists()) {
+            return validLength;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int index;
+                byte[] hash = new byte[Hashes.SHA256_LENGTH];
+                byte[] textBytes;
+                try {
+                    index = in.readInt();
+                    in.readFully(hash);
+                    int length = in.readInt();
+                    if (length < 0) break;
+                    textBytes = new byte[length];
+                    in.readFully(textBytes);
+                }
+                catch (EOFException e) {
+                    break; /* End of file, or a record that was cut off */
+                }
+
+                finished.put(index, new Entry(hash, new String(textBytes, StandardCharsets.UTF_8)));
+                validLength += 4 + hash.length + 4 + textBytes.length;
+            }
+        }
+        return validLength;
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * ============== ChunkValidator.java =============
+ *
+ * Checks a translated chunk against the formatted chunk it came from before
+ * it is written out. The game reads its text by the null characters, the
+ * identifiers and the control tags, so a translation that dropped a <NUL>,
+ * changed an identifier or made up a tag of its own can crash the game or
+ * show the wrong text, and used to be found only by playing.
+ *
+ * The markup of a chunk never goes through the translator, so it can only go
+ * wrong through the dialogue: a translation that came back holding a tag or a
+ * null character of its own. A chunk passes when its tags are the very same
+ * as the source's, in the same order. When they are not, the tags of each
+ * kind are counted to say what went wrong:
+ *   <NUL>                 null characters
+ *   <place_town>          identifiers
+ *   <placeholder>         the <p> tags
+ *   <k>, <icon ...> ...   every other control tag
+ *
+ * A journal written before only the dialogue was sent can hold chunks broken
+ * this way too, so journaled chunks are checked the same way.
+ */
+public class ChunkValidator {
+
+    private static final String NUL_TAG = "<NUL>";
+    private static final String PLACEHOLDER_TAG = "<placeholder>";
+    private static final String[] KINDS = {"<NUL>", "identifier", "<placeholder>", "control tag"};
+
+    private ChunkValidator() {
+    }
+
+    /**
+     * Checks that a translated chunk has the same markup as its source.
+     *
+     * @param source formatted chunk that was translated.
+     * @param translated the chunk after translating it.
+     * @return null if the chunk is fine, or else what is wrong with it.
+     */
+    public static String check(String source, String translated) {
+        if (translated.indexOf('\0') >= 0) {
+            return "null character in the dialogue";
+        }
+
+        List<String> sourceTags = tags(source);
+        List<String> translatedTags = tags(translated);
+        if (sourceTags.equals(translatedTags)) {
+            return null;
+        }
+
+        int[] sourceCounts = count(sourceTags);
+        int[] translatedCounts = count(translatedTags);
+        StringBuilder problem = new StringBuilder();
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            if (sourceCounts[kind] != translatedCounts[kind]) {
+                if (problem.length() > 0) problem.append(", ");
+                problem.append(translatedCounts[kind]).append(' ').append(KINDS[kind])
+                        .append(" instead of ").append(sourceCounts[kind]);
+            }
+        }
+        return (problem.length() > 0) ? problem.toString() : "tags changed";
+    }
+
+    /**
+     * Checks one translated dialogue segment, which should have no markup at all.
+     *
+     * @param translated translation of a dialogue segment.
+     * @return whether the segment can be put back into its chunk as it is.
+     */
+    public static boolean isClean(String translated) {
+        return translated.indexOf('\0') < 0 && tags(translated).isEmpty();
+    }
+
+    /**
+     * @return every top level tag of the text, in order.
+     */
+    private static List<String> tags(String text) {
+        List<String> tags = new ArrayList<>();
+        int pos = text.indexOf('<');
+        while (pos >= 0) {
+            int tagEnd = GameTextLexer.tagEnd(text, pos);
+            if (tagEnd < 0) {
+                pos = text.indexOf('<', pos + 1); /* A lone < is just text */
+            }
+            else {
+                tags.add(text.substring(pos, tagEnd));
+                pos = text.indexOf('<', tagEnd);
+            }
+        }
+        return tags;
+    }
+
+    private static int[] count(List<String> tags) {
+        int[] counts = new int[KINDS.length];
+        for (String tag : tags) {
+            if (tag.equals(NUL_TAG)) {
+                counts[0]++;
+            }
+            else if (tag.equals(PLACEHOLDER_TAG)) {
+                counts[2]++;
+            }
+            else if (isIdentifier(tag)) {
+                counts[1]++;
+            }
+            else {
+                counts[3]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return whether the tag is an identifier, a run of letters, digits and underscores
+     * holding at least one underscore, as GameTextLexer.format() finds them.
+     */
+    private static boolean isIdentifier(String tag) {
+        boolean hasUnderscore = false;
+        for (int i = 1; i < tag.length() - 1; i++) {
+            char c = tag.charAt(i);
+            if (c == '_') {
+                hasUnderscore = true;
+            }
+            else if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+        return hasUnderscore;
+    }
+}
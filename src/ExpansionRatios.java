@@ -0,0 +1,155 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * ============== ExpansionRatios.java =============
+ *
+ * Learns how much longer or shorter text gets in each translation hop, so the
+ * segments of a batch can be packed as close to the request limit as the chain
+ * allows. A batch goes through every hop of the chain together, so if one hop
+ * makes its text 30% longer, a batch that fits in one request of the home
+ * language needs two requests at that hop and every hop after it.
+ *
+ * For every language pair the characters sent and the characters that came
+ * back are added up, and their ratio is the expansion of that hop. The text
+ * reaching a hop has gone through every hop before it, so its length is the
+ * product of their ratios, and the worst of those over the chain says how far
+ * below the request limit a batch must start.
+ *
+ * A pair is only trusted once minSampleChars of it were sent; until then it is
+ * taken to keep the length of the text. The totals are saved between runs, so
+ * only the very first run of a chain has to learn them, and are scaled down to
+ * maxSampleChars when saved, so the ratios still follow a translator that
+ * changes.
+ *
+ * The file holds one record per pair,
+ *   [UTF language from][UTF language to][long chars sent][long chars received]
+ */
+public class ExpansionRatios {
+
+    private final File file;
+    private final long minSampleChars;
+    private final long maxSampleChars;
+    private final Map<String, Totals> pairs = new ConcurrentHashMap<>(); /* By "from -> to" */
+
+    private static class Totals {
+        final String langFrom;
+        final String langTo;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+
+        Totals(String langFrom, String langTo) {
+            this.langFrom = langFrom;
+            this.langTo = langTo;
+        }
+    }
+
+    /**
+     * Reads the ratios learned by earlier runs, if there are any.
+     *
+     * @param fileName name of the file the ratios are kept in.
+     * @param minSampleChars characters of a language pair to be sent before its ratio is used.
+     * @param maxSampleChars characters of a language pair kept when saving, older ones weigh less.
+     * @throws IOException upon an issue reading the file.
+     */
+    public ExpansionRatios(String fileName, long minSampleChars, long maxSampleChars) throws IOException {
+        this.file = new File(fileName);
+        this.minSampleChars = minSampleChars;
+        this.maxSampleChars = maxSampleChars;
+        load();
+    }
+
+    /**
+     * Records the length of the texts of one reply.
+     *
+     * @param langFrom language the texts were translated from.
+     * @param langTo language the texts were translated to.
+     * @param sentChars characters of the texts sent.
+     * @param receivedChars characters of their translations.
+     */
+    public void record(String langFrom, String langTo, long sentChars, long receivedChars) {
+        Totals totals = totals(langFrom, langTo);
+        totals.sent.addAndGet(sentChars);
+        totals.received.addAndGet(receivedChars);
+    }
+
+    /**
+     * @param langFrom language texts are translated from.
+     * @param langTo language texts are translated to.
+     * @return characters that come back for every character sent, or 1 if too little was sent yet.
+     */
+    public double ratio(String langFrom, String langTo) {
+        Totals totals = pairs.get(langFrom + " -> " + langTo);
+        if (totals == null) {
+            return 1;
+        }
+        long sent = totals.sent.get();
+        return (sent >= minSampleChars) ? (double) totals.received.get() / sent : 1;
+    }
+
+    /**
+     * Replaces the file with the ratios learned so far, creating its directory if it does not
+     * exist yet.
+     *
+     * @throws IOException upon an issue writing the file.
+     */
+    public void save() throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            for (Totals totals : pairs.values()) {
+                long sent = totals.sent.get();
+                long received = totals.received.get();
+                if (sent > maxSampleChars) {
+                    received = Math.round((double) received * maxSampleChars / sent);
+                    sent = maxSampleChars;
+                }
+                out.writeUTF(totals.langFrom);
+                out.writeUTF(totals.langTo);
+                out.writeLong(sent);
+                out.writeLong(received);
+            }
+        }
+
+        /* Replaced in one step, so a crash leaves either the old ratios or the new ones */
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Totals totals(String langFrom, String langTo) {
+        return pairs.computeIfAbsent(langFrom + " -> " + langTo, pair -> new Totals(langFrom, langTo));
+    }
+
+    /**
+     * Reads every complete record of the file. A record cut off at the end is left out.
+     */
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                try {
+                    String langFrom = in.readUTF();
+                    String langTo = in.readUTF();
+                    long sent = in.readLong();
+                    long received = in.readLong();
+                    record(langFrom, langTo, sent, received);
+                }
+                catch (EOFException e) {
+                    break; /* End of file, or a record that was cut off */
+                }
+            }
+        }
+    }
+}
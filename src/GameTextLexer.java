@@ -0,0 +1,248 @@
+/*
+ * ============== GameTextLexer.java =============
+ *
+ * Does the per-line work of splitTextIntoChunksAndFormat() and unformat() in a
+ * single forward pass over the line, writing into a buffer supplied by the
+ * caller so the same buffer can be reused for every line of a file.
+ *
+ * format() turns game text into the formatted text MessageParser splits up:
+ *   identifiers like place_town  ->  <place_town>
+ *   the null character           ->  <NUL>
+ *   <p>                          ->  <placeholder>
+ *
+ * unformat() undoes that on the translated text, and also decodes the HTML
+ * entities Google Translate puts in place of some characters of the dialogue:
+ *   <place_town>                 ->  place_town
+ *   <NUL>                        ->  the null character
+ *   <placeholder>                ->  <p>
+ *   &#39;                        ->  '
+ *   &quot;                       ->  "
+ *   &gt;                         ->  >
+ *
+ * Only the dialogue goes through the translator, so tags come back exactly
+ * as they were and need no repairs.
+ *
+ * An identifier is any run of letters, digits and underscores holding at
+ * least one underscore, the same as the \w*_\w* pattern used before.
+ *
+ * tagEnd(), isIdentifier() and entity() give the tag grammar of formatted
+ * text to the other classes reading it. A tag runs from < to its matching >,
+ * and can hold other tags, since an identifier inside a control tag gets
+ * brackets of its own:
+ *   <icon PAD_A 0.58 0 0 0>      ->  <icon <PAD_A> 0.58 0 0 0>
+ */
+public class GameTextLexer {
+
+    private static final String NUL_TAG = "<NUL>";
+    private static final String P_TAG = "<p>";
+    private static final String PLACEHOLDER_TAG = "<placeholder>";
+    private static final String[] ENTITIES = {"&#39;", "&quot;", "&gt;"};
+    private static final char[] ENTITY_CHARS = {'\'', '"', '>'};
+
+    private GameTextLexer() {
+    }
+
+    /**
+     * Formats one line of game text for translation.
+     *
+     * @param line line of the original game text, without its line break.
+     * @param out buffer the formatted line is appended to.
+     */
+    public static void format(CharSequence line, StringBuilder out) {
+        int length = line.length();
+        int pos = 0;
+
+        while (pos < length) {
+            char c = line.charAt(pos);
+
+            if (isWordChar(c)) {
+                /* Take the whole word, and enclose it in brackets if it is an identifier */
+                int start = pos;
+                boolean hasUnderscore = false;
+                while (pos < length && isWordChar(line.charAt(pos))) {
+                    hasUnderscore |= line.charAt(pos) == '_';
+                    pos++;
+                }
+                if (hasUnderscore) {
+                    out.append('<').append(line, start, pos).append('>');
+                }
+                else {
+                    out.append(line, start, pos);
+                }
+            }
+            else if (c == '\0') {
+                out.append(NUL_TAG);
+                pos++;
+            }
+            else if (c == '<' && startsWith(line, pos, P_TAG)) {
+                out.append(PLACEHOLDER_TAG);
+                pos += P_TAG.length();
+            }
+            else {
+                out.append(c);
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Undoes format() on one line of translated text.
+     *
+     * @param line line of the translated text, without its line break.
+     * @param out buffer the unformatted line is appended to.
+     */
+    public static void unformat(CharSequence line, StringBuilder out) {
+        unformat(line, 0, line.length(), out);
+    }
+
+    /**
+     * Undoes format() on one line of translated text held inside a bigger buffer.
+     *
+     * @param line buffer holding the line.
+     * @param start position of the line in the buffer.
+     * @param lineEnd position just after the line, without its line break.
+     * @param out buffer the unformatted line is appended to.
+     */
+    public static void unformat(CharSequence line, int start, int lineEnd, StringBuilder out) {
+        int length = lineEnd;
+        int pos = start;
+
+        while (pos < length) {
+            char c = line.charAt(pos);
+
+            if (c == '<') {
+                if (startsWith(line, pos, NUL_TAG)) {
+                    out.append('\0');
+                    pos += NUL_TAG.length();
+                    continue;
+                }
+                if (startsWith(line, pos, PLACEHOLDER_TAG)) {
+                    out.append(P_TAG);
+                    pos += PLACEHOLDER_TAG.length();
+                    continue;
+                }
+
+                /* Remove the <> from identifiers */
+                int end = pos + 1;
+                boolean hasUnderscore = false;
+                while (end < length && isWordChar(line.charAt(end))) {
+                    hasUnderscore |= line.charAt(end) == '_';
+                    end++;
+                }
+                if (hasUnderscore && end < length && line.charAt(end) == '>') {
+                    out.append(line, pos + 1, end);
+                    pos = end + 1;
+                    continue;
+                }
+
+                out.append(c);
+                pos++;
+            }
+            else if (c == '&') {
+                /* Google translate replaces some characters with HTML entities, reverse this effect */
+                int entityLength = entityLength(line, pos);
+                if (entityLength > 0) {
+                    out.append(entityChar(line, pos));
+                    pos += entityLength;
+                }
+                else {
+                    out.append(c);
+                    pos++;
+                }
+            }
+            else {
+                out.append(c);
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the tag starting at pos, counting the tags inside it.
+     *
+     * @param text formatted text.
+     * @param pos position of a < in the text.
+     * @return the position just after the > closing the tag, or -1 if the tag is never closed,
+     * in which case the < is just text.
+     */
+    public static int tagEnd(CharSequence text, int pos) {
+        int depth = 0;
+        for (int i = pos; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                depth++;
+            }
+            else if (c == '>' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param text formatted text.
+     * @param pos position of a &lt; in the text.
+     * @param tagEnd position just after the tag, as given by tagEnd().
+     * @return true if the tag is an identifier put in brackets by format(), like &lt;place_town&gt;.
+     */
+    public static boolean isIdentifier(CharSequence text, int pos, int tagEnd) {
+        boolean hasUnderscore = false;
+        for (int i = pos + 1; i < tagEnd - 1; i++) {
+            char c = text.charAt(i);
+            if (!isWordChar(c)) {
+                return false;
+            }
+            hasUnderscore |= c == '_';
+        }
+        return hasUnderscore;
+    }
+
+    /**
+     * Recognizes the HTML entities unformat() decodes.
+     *
+     * @param text translated text.
+     * @param pos position of a &amp; in the text.
+     * @return the length of the entity at pos, or 0 if there is none.
+     */
+    public static int entityLength(CharSequence text, int pos) {
+        for (String entity : ENTITIES) {
+            if (startsWith(text, pos, entity)) {
+                return entity.length();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param text translated text.
+     * @param pos position of an entity found by entityLength().
+     * @return the character the entity stands for.
+     */
+    public static char entityChar(CharSequence text, int pos) {
+        for (int i = 0; i < ENTITIES.length; i++) {
+            if (startsWith(text, pos, ENTITIES[i])) {
+                return ENTITY_CHARS[i];
+            }
+        }
+        return text.charAt(pos);
+    }
+
+    /**
+     * @return true if c is matched by \w, i.e. a letter, digit or underscore.
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean startsWith(CharSequence line, int pos, String prefix) {
+        if (pos + prefix.length() > line.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(pos + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * ============== GameTextReader.java =============
+ *
+ * Reads a game text file line by line, the same way BufferedReader.readLine()
+ * would, but without going through a Reader using the default charset.
+ *
+ * The file is memory-mapped, and lines are found by looking for the line break
+ * bytes. Each line is then split on its NUL bytes, which separate the messages
+ * and identifiers of the game, and only the text between the NULs is decoded,
+ * with an explicit charset. The NULs themselves never go through the decoder,
+ * so they always come out exactly as they went in.
+ *
+ * Text that is not valid in the charset is reported as an error instead of
+ * being quietly replaced, since a replaced byte would not make it back into
+ * the game file. Line breaks and NULs are found on the byte level, so the
+ * charset must encode them as single bytes, like UTF-8 and ISO-8859-1 do.
+ *
+ * A part of the file can be read on its own through slice(), which shares the
+ * mapping but has a decoder of its own, so several threads can each read
+ * their own part of one file at the same time.
+ */
+public class GameTextReader implements Closeable {
+
+    private final String fileName;
+    private final FileChannel channel;   /* null for a slice, the channel is closed with the whole file */
+    private final ByteBuffer bytes;
+    private final int offset;            /* Position of bytes in the file */
+    private final CharsetDecoder decoder;
+    private final StringBuilder line = new StringBuilder();
+    private CharBuffer decoded = CharBuffer.allocate(1024);
+
+    /**
+     * Opens and maps the given file.
+     *
+     * @param fileName name of the file to read.
+     * @param charset charset the text of the file is encoded in.
+     * @throws IOException upon an issue opening the file.
+     */
+    public GameTextReader(String fileName, Charset charset) throws IOException {
+        this.fileName = fileName;
+        this.channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
+        if (channel.size() > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException(fileName + " is too large to map");
+        }
+        this.bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        this.offset = 0;
+        this.decoder = newDecoder(charset);
+    }
+
+    private GameTextReader(GameTextReader file, int start, int end) {
+        this.fileName = file.fileName;
+        this.channel = null;
+        this.bytes = file.bytes.slice(start, end - start);
+        this.offset = file.offset + start;
+        this.decoder = newDecoder(file.decoder.charset());
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+    }
+
+    /**
+     * @return size of the part of the file read, in bytes.
+     */
+    public int size() {
+        return bytes.limit();
+    }
+
+    /**
+     * Finds where the line holding the given byte ends. Safe to call from any thread, the
+     * read position is not used.
+     *
+     * @param pos a byte of the part of the file read.
+     * @return the position of the first line starting after pos, or size() if pos is on the last line.
+     */
+    public int nextLineStart(int pos) {
+        int limit = bytes.limit();
+        while (pos < limit && bytes.get(pos) != '\n' && bytes.get(pos) != '\r') {
+            pos++;
+        }
+        if (pos < limit) {
+            boolean crlf = bytes.get(pos) == '\r' && pos + 1 < limit && bytes.get(pos + 1) == '\n';
+            pos += crlf ? 2 : 1;
+        }
+        return pos;
+    }
+
+    /**
+     * Gives a reader of bytes [start, end), read from its start. The part must start and end
+     * on the start of a line, e.g. one found by nextLineStart(), to be read as the same lines.
+     * The slice shares the mapping of this reader, and can be used on another thread.
+     *
+     * @param start first byte of the part.
+     * @param end byte after the last byte of the part.
+     * @return a reader of the part.
+     */
+    public GameTextReader slice(int start, int end) {
+        return new GameTextReader(this, start, end);
+    }
+
+    /**
+     * Reads the next line, without its line break. A line ends at \n, \r or \r\n.
+     *
+     * @return the line, or null at the end of the file. Only valid until the next call,
+     * since the same buffer is reused for every line.
+     * @throws IOException if the line is not valid text in the charset.
+     */
+    public CharSequence readLine() throws IOException {
+        int start = bytes.position();
+        int limit = bytes.limit();
+        if (start >= limit) {
+            return null;
+        }
+
+        /* Find the end of the line */
+        int end = start;
+        while (end < limit && bytes.get(end) != '\n' && bytes.get(end) != '\r') {
+            end++;
+        }
+
+        /* Decode the text between the NULs, and copy the NULs over as they are */
+        line.setLength(0);
+        int segmentStart = start;
+        for (int pos = start; pos < end; pos++) {
+            if (bytes.get(pos) == 0) {
+                decodeSegment(segmentStart, pos);
+                line.append('\0');
+                segmentStart = pos + 1;
+            }
+        }
+        decodeSegment(segmentStart, end);
+
+        /* Step over the line break, treating \r\n as one */
+        int next = end;
+        if (next < limit) {
+            boolean crlf = bytes.get(next) == '\r' && next + 1 < limit && bytes.get(next + 1) == '\n';
+            next += crlf ? 2 : 1;
+        }
+        bytes.position(next);
+
+        return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Decodes bytes [from, to) of the file onto the end of the current line.
+     */
+    private void decodeSegment(int from, int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+
+        ByteBuffer segment = bytes.slice(from, to - from);
+        decoder.reset();
+        while (true) {
+            decoded.clear();
+            CoderResult result = decoder.decode(segment, decoded, true);
+            if (result.isUnderflow()) {
+                result = decoder.flush(decoded);
+            }
+            if (result.isError()) {
+                throw new IOException(fileName + " is not valid " + decoder.charset() + " text at byte "
+                        + (offset + from + segment.position()));
+            }
+
+            decoded.flip();
+            line.append(decoded);
+
+            if (result.isUnderflow()) {
+                return;
+            }
+            /* Ran out of room, make the buffer bigger for the rest of the segment */
+            decoded = CharBuffer.allocate(decoded.capacity() * 2);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * ============== GameTextWriter.java =============
+ *
+ * Writes text to a file through a FileChannel, encoded with an explicit
+ * charset, so the final translation is written in the same encoding the game
+ * text was read in rather than the platform's default. Text is encoded into
+ * one reused buffer, which is written out whenever it fills up.
+ *
+ * Characters the charset can not hold, which only come from the translations,
+ * are replaced with the charset's replacement, usually '?'. Text that is not
+ * valid UTF-16, like half of a surrogate pair, is an error instead, reported
+ * by append() or, for a half pair at the very end, by close(). A pair split
+ * between two calls to append() is put back together.
+ *
+ * Line breaks are not kept byte for byte: GameTextReader ends a line at \n,
+ * \r or \r\n alike, and every line is written back ending in \n.
+ */
+public class GameTextWriter implements Closeable {
+
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private char highSurrogate;      /* First half of a pair whose second half has not been appended yet */
+    private boolean hasHighSurrogate = false;
+
+    /**
+     * Creates the given file, replacing it if it already exists.
+     *
+     * @param fileName name of the file to write.
+     * @param charset charset to encode the text with.
+     * @throws IOException upon an issue creating the file.
+     */
+    public GameTextWriter(String fileName, Charset charset) throws IOException {
+        this.channel = FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Encodes the text and adds it to the end of the file.
+     *
+     * @param text text to write.
+     * @return this writer.
+     * @throws CharacterCodingException if the text is not valid UTF-16.
+     * @throws IOException upon an issue writing to the file.
+     */
+    public GameTextWriter append(CharSequence text) throws IOException {
+        CharBuffer chars;
+        if (hasHighSurrogate) {
+            chars = CharBuffer.allocate(text.length() + 1);
+            chars.put(highSurrogate).append(text).flip();
+            hasHighSurrogate = false;
+        }
+        else {
+            chars = CharBuffer.wrap(text);
+        }
+
+        encode(chars, false);
+
+        /* The encoder leaves the first half of a pair at the end until it sees the second half */
+        if (chars.hasRemaining()) {
+            highSurrogate = chars.get();
+            hasHighSurrogate = true;
+        }
+        return this;
+    }
+
+    /**
+     * Writes what is left and closes the file, which is closed even if writing fails.
+     *
+     * @throws CharacterCodingException if the text ended with the first half of a surrogate pair.
+     * @throws IOException upon an issue writing to the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            /* A first half of a pair still waiting for its second half never gets one */
+            CharBuffer rest = hasHighSurrogate ? CharBuffer.wrap(new char[] {highSurrogate}) : CharBuffer.allocate(0);
+            hasHighSurrogate = false;
+            encode(rest, true);
+            while (encoder.flush(buffer).isOverflow()) {
+                writeBuffer();
+            }
+            writeBuffer();
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Encodes the chars into the buffer, writing it out whenever it fills up.
+     */
+    private void encode(CharBuffer chars, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, endOfInput);
+            if (result.isUnderflow()) {
+                return;
+            }
+            if (result.isOverflow()) {
+                writeBuffer(); /* Buffer is full */
+            }
+            else {
+                result.throwException();
+            }
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
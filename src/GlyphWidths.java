@@ -0,0 +1,69 @@
+/*
+ * ============== GlyphWidths.java =============
+ *
+ * How wide each character is drawn in the game's dialogue box, used by
+ * LineWrapper to fill each line of a text box without running off of it.
+ *
+ * The dialogue font is proportional, so counting characters lets a line of
+ * "mmmm" run off the screen while a line of "iiii" leaves half the box empty.
+ * dialogueFont() is a width table for that font in pixels. The widths are
+ * not measured from the game's font files, only sorted into a few classes by
+ * the usual shapes of a proportional font, which is still much closer than
+ * counting characters. A measured table can be dropped in through the
+ * constructor.
+ */
+public class GlyphWidths {
+
+    private final int[] widths;     /* Width of every char below widths.length */
+    private final int defaultWidth; /* Width of every other char */
+
+    /**
+     * @param widths width of every char below widths.length.
+     * @param defaultWidth width of every other char.
+     */
+    public GlyphWidths(int[] widths, int defaultWidth) {
+        this.widths = widths.clone();
+        this.defaultWidth = defaultWidth;
+    }
+
+    /**
+     * @return a table where every char is 1 wide, so widths are counts of characters.
+     */
+    public static GlyphWidths monospace() {
+        return new GlyphWidths(new int[0], 1);
+    }
+
+    /**
+     * Estimated widths of the game's dialogue font, in pixels. These are not measured from the
+     * font: each character is given the width of one of five classes, from 5 for "i" and "l" to
+     * 15 for "m" and "w", with 12 for anything else.
+     *
+     * @return the estimated widths of the game's dialogue font.
+     */
+    public static GlyphWidths dialogueFont() {
+        int[] widths = new int[128];
+        fill(widths, 10, "abcdeghknopqsuvxyz?#$%&*+-/<=>^_~");
+        fill(widths, 12, "ABCDEFGHJKLNOPQRSTUVXYZ0123456789");
+        fill(widths, 15, "mwMW@");
+        fill(widths, 7, " fjrt()[]{}\"");
+        fill(widths, 5, "iIl.,;:'!|`");
+        return new GlyphWidths(widths, 12);
+    }
+
+    /**
+     * @param c a character of the text.
+     * @return how wide c is drawn.
+     */
+    public int width(char c) {
+        if (c < widths.length && widths[c] != 0) {
+            return widths[c];
+        }
+        return defaultWidth;
+    }
+
+    private static void fill(int[] widths, int width, String chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            widths[chars.charAt(i)] = width;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * ============== Hashes.java =============
+ *
+ * Hashing helpers shared by the files that remember work between runs,
+ * such as the translation cache and the chunk journal.
+ */
+public class Hashes {
+
+    public static final int SHA256_LENGTH = 32; /* Length of a SHA-256 hash in bytes */
+
+    private Hashes() {
+    }
+
+    /**
+     * Hashes several strings together. The strings are separated by \0, which never
+     * shows up in a language code or in formatted text, so ("ab", "c") and ("a", "bc")
+     * give different hashes.
+     *
+     * @param parts strings to hash.
+     * @return the SHA-256 hash of the strings.
+     */
+    public static byte[] sha256(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) digest.update((byte) 0);
+                digest.update(parts[i].getBytes(StandardCharsets.UTF_8));
+            }
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param bytes bytes to write out.
+     * @return the bytes as a lowercase hexadecimal string.
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @param hex a hexadecimal string, as made by toHex().
+     * @return the bytes the string represents.
+     */
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/*
+ * ============== HedgingTranslator.java =============
+ *
+ * Wraps another Translator so that one slow reply does not hold up a whole
+ * chunk. A chunk goes through every hop of its chain one after the other, so
+ * the chunk is as slow as its slowest hop, and over many chunks the run ends
+ * up waiting on the slowest few percent of the requests.
+ *
+ * The time taken by every request is tracked for each language pair. Once a
+ * pair has minSamples of them, a request that has not been answered by the
+ * given percentile of that time, e.g. the p95, is sent a second time, and
+ * whichever reply comes first is used. The request only fails if both fail.
+ * The slower reply is not waited for, but it can not be taken back either.
+ *
+ * Every duplicate is a real request, so at most maxHedgeFraction of the
+ * requests are ever sent twice. It wraps the single send of a request, inside
+ * a RetryingTranslator, so only the time the script takes to answer is
+ * learned, not retry backoff or waits for the RateLimiter, and a request
+ * waiting out a 429 is never sent twice. A duplicate is only sent if
+ * hedgePermit allows it, which takes it out of the RequestBudget and takes a
+ * token the RateLimiter has free right now, so no duplicate goes out while
+ * other requests are waiting for the limiter.
+ */
+public class HedgingTranslator implements Translator {
+
+    private final Translator delegate;
+    private final double percentile;
+    private final int minSamples;
+    private final double maxHedgeFraction;
+    private final BooleanSupplier hedgePermit;
+
+    private final Map<String, LatencyHistogram> latency = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger hedges = new AtomicInteger();
+    private final AtomicInteger hedgesWon = new AtomicInteger();
+
+    /**
+     * @param delegate translator actually sending the requests.
+     * @param percentile percentile of the time taken by the requests of a language pair, between
+     *                   0 and 100, after which a request of that pair is sent again.
+     * @param minSamples requests a language pair needs to have had answered before any is sent again.
+     * @param maxHedgeFraction most requests sent again, as a fraction of all the requests. 0 never
+     *                         sends a request again.
+     * @param hedgePermit asked before sending a request again, which is only done if it gives true,
+     *                    e.g. once it took a request out of the budget and a token from the limiter.
+     */
+    public HedgingTranslator(Translator delegate, double percentile, int minSamples, double maxHedgeFraction,
+                             BooleanSupplier hedgePermit) {
+        this.delegate = delegate;
+        this.percentile = percentile;
+        this.minSamples = minSamples;
+        this.maxHedgeFraction = maxHedgeFraction;
+        this.hedgePermit = hedgePermit;
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateAsync(String langFrom, String langTo, List<String> texts) {
+        LatencyHistogram histogram = latency.computeIfAbsent(langFrom + " -> " + langTo,
+                pair -> new LatencyHistogram());
+        requests.incrementAndGet();
+
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1); /* Requests not answered yet */
+        send(langFrom, langTo, texts, histogram, false, pending, result);
+
+        if (histogram.count() >= minSamples && maxHedgeFraction > 0) {
+            long delay = histogram.percentileNanos(percentile);
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+                if (result.isDone() || !takeHedge()) {
+                    return;
+                }
+                if (!hedgePermit.getAsBoolean()) {
+                    hedges.decrementAndGet(); /* Not sent, so it does not count against the fraction */
+                    return;
+                }
+
+                /* Only while the failure of both is not decided */
+                if (pending.getAndUpdate(count -> count == 0 ? 0 : count + 1) > 0) {
+                    send(langFrom, langTo, texts, histogram, true, pending, result);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * @return number of requests sent a second time.
+     */
+    public int hedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return number of requests sent a second time where the second reply came first.
+     */
+    public int hedgesWon() {
+        return hedgesWon.get();
+    }
+
+    private void send(String langFrom, String langTo, List<String> texts, LatencyHistogram histogram,
+                      boolean hedge, AtomicInteger pending, CompletableFuture<List<String>> result) {
+        long start = System.nanoTime();
+        delegate.translateAsync(langFrom, langTo, texts).whenComplete((translated, error) -> {
+            if (error == null) {
+                histogram.record(System.nanoTime() - start);
+                /* Counted before completing, so the count is right as soon as the caller has the reply */
+                if (hedge && !result.isDone()) {
+                    hedgesWon.incrementAndGet();
+                }
+                result.complete(translated);
+            }
+            else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(error);
+            }
+        });
+    }
+
+    /**
+     * Takes one hedge out of the budget, if sending another would stay within maxHedgeFraction.
+     */
+    private boolean takeHedge() {
+        double allowed = maxHedgeFraction * requests.get();
+        int before = hedges.getAndUpdate(count -> count + 1 <= allowed ? count + 1 : count);
+        return before + 1 <= allowed;
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * ============== HttpClientTranslator.java =============
+ *
+ * Translator backend built on one shared java.net.http.HttpClient. The client
+ * keeps its connections open between requests, so a run pays for the TLS
+ * handshake once instead of on every hop, and uses HTTP/2 when the endpoint
+ * supports it. Responses are asked for gzipped, and every request has a time
+ * limit so a stalled hop fails instead of hanging the whole run. An answer
+ * other than a JSON array of the translations is thrown as a
+ * ScriptResponseException.
+ */
+public class HttpClientTranslator implements Translator {
+
+    private final URI endpoint;
+    private final Duration requestTimeout;
+    private final HttpClient client;
+
+    /**
+     * @param endpoint URL of the translation script.
+     * @param connectTimeout longest time to wait for a connection to the script.
+     * @param requestTimeout longest time to wait for the script to answer a request.
+     */
+    public HttpClientTranslator(String endpoint, Duration connectTimeout, Duration requestTimeout) {
+        this.endpoint = URI.create(endpoint);
+        this.requestTimeout = requestTimeout;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL) /* Apps Script answers through a redirect */
+                .connectTimeout(connectTimeout)
+                .build();
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateAsync(String langFrom, String langTo, List<String> texts) {
+        HttpRequest request = HttpRequest.newBuilder(endpoint)
+                .timeout(requestTimeout)
+                .header("User-Agent", "Mozilla/5.0")
+                .header("Content-Type", "application/json; charset=UTF-8")
+                .header("Accept-Encoding", "gzip")
+                .POST(HttpRequest.BodyPublishers.ofString(Json.batchRequest(langFrom, langTo, texts),
+                        StandardCharsets.UTF_8))
+                .build();
+
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    try {
+                        return parseResponse(response, texts.size());
+                    }
+                    catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    private static List<String> parseResponse(HttpResponse<byte[]> response, int expected) throws IOException {
+        String body = new String(decode(response), StandardCharsets.UTF_8);
+        if (response.statusCode() != 200) {
+            throw new ScriptResponseException(response.statusCode(), "Translation script answered "
+                    + response.statusCode() + ": " + body.substring(0, Math.min(body.length(), 200)),
+                    retryAfter(response));
+        }
+
+        List<String> translated;
+        try {
+            translated = Json.parseStringArray(body);
+        }
+        catch (IOException e) {
+            throw new ScriptResponseException(response.statusCode(), "Translation script answered with "
+                    + body.substring(0, Math.min(body.length(), 200)), e);
+        }
+        if (translated.size() != expected) {
+            throw new ScriptResponseException(response.statusCode(), "Asked for " + expected
+                    + " translations but got " + translated.size(), (Duration) null);
+        }
+        return translated;
+    }
+
+    /**
+     * @return the wait asked for by a Retry-After header given in seconds, or null if there is none.
+     */
+    private static Duration retryAfter(HttpResponse<byte[]> response) {
+        return response.headers().firstValue("Retry-After")
+                .filter(seconds -> seconds.matches("\\d{1,9}"))
+                .map(seconds -> Duration.ofSeconds(Long.parseLong(seconds)))
+                .orElse(null);
+    }
+
+    /**
+     * @return the body of the response, unzipped if the server sent it gzipped.
+     */
+    private static byte[] decode(HttpResponse<byte[]> response) throws IOException {
+        boolean gzipped = response.headers().firstValue("Content-Encoding")
+                .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+                .orElse(false);
+        if (!gzipped) {
+            return response.body();
+        }
+
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.body()))) {
+            return in.readAllBytes();
+        }
+    }
+}
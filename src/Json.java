@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * ============== Json.java =============
+ *
+ * The little bit of JSON needed to talk to the batch mode of translate.gs:
+ * writing a request with a source language, target language and an array of
+ * texts, and reading back an array of translated texts. Nothing more is
+ * supported on purpose, so no JSON library is needed.
+ */
+public class Json {
+
+    private Json() {
+    }
+
+    /**
+     * Writes the body of a batch translation request, e.g.
+     * {"source":"en","target":"fr","q":["Hello","Goodbye"]}
+     *
+     * @param langFrom language the texts are translated from.
+     * @param langTo language the texts are translated to.
+     * @param texts texts to translate.
+     * @return the request body.
+     */
+    public static String batchRequest(String langFrom, String langTo, List<String> texts) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"source\":");
+        appendString(json, langFrom);
+        json.append(",\"target\":");
+        appendString(json, langTo);
+        json.append(",\"q\":");
+        json.append(stringArray(texts));
+        json.append('}');
+        return json.toString();
+    }
+
+    /**
+     * @param texts strings to write out.
+     * @return the strings as a JSON array.
+     */
+    public static String stringArray(List<String> texts) {
+        StringBuilder json = new StringBuilder();
+        json.append('[');
+        for (int i = 0; i < texts.size(); i++) {
+            if (i > 0) json.append(',');
+            appendString(json, texts.get(i));
+        }
+        json.append(']');
+        return json.toString();
+    }
+
+    /**
+     * Reads a JSON array of strings, e.g. ["Bonjour","Au revoir"].
+     *
+     * @param json the JSON text.
+     * @return the strings in the array, in order.
+     * @throws IOException if the text is not an array of strings.
+     */
+    public static List<String> parseStringArray(String json) throws IOException {
+        List<String> strings = new ArrayList<>();
+        int pos = skipWhitespace(json, 0);
+        pos = expect(json, pos, '[');
+
+        pos = skipWhitespace(json, pos);
+        if (pos < json.length() && json.charAt(pos) == ']') {
+            return strings;
+        }
+
+        while (true) {
+            StringBuilder string = new StringBuilder();
+            pos = readString(json, skipWhitespace(json, pos), string);
+            strings.add(string.toString());
+
+            pos = skipWhitespace(json, pos);
+            if (pos < json.length() && json.charAt(pos) == ',') {
+                pos++;
+            }
+            else {
+                expect(json, pos, ']');
+                return strings;
+            }
+        }
+    }
+
+    private static void appendString(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':  json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Reads the JSON string starting at pos into the given builder.
+     *
+     * @return position right after the closing quote.
+     */
+    private static int readString(String json, int pos, StringBuilder string) throws IOException {
+        pos = expect(json, pos, '"');
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                return pos;
+            }
+            if (c != '\\') {
+                string.append(c);
+                continue;
+            }
+
+            if (pos >= json.length()) break;
+            char escaped = json.charAt(pos++);
+            switch (escaped) {
+                case '"':  string.append('"'); break;
+                case '\\': string.append('\\'); break;
+                case '/':  string.append('/'); break;
+                case 'b':  string.append('\b'); break;
+                case 'f':  string.append('\f'); break;
+                case 'n':  string.append('\n'); break;
+                case 'r':  string.append('\r'); break;
+                case 't':  string.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw new IOException("Bad unicode escape in JSON at " + pos);
+                    }
+                    try {
+                        string.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    }
+                    catch (NumberFormatException e) {
+                        throw new IOException("Bad unicode escape in JSON at " + pos);
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    throw new IOException("Bad escape \\" + escaped + " in JSON at " + pos);
+            }
+        }
+        throw new IOException("Unterminated string in JSON");
+    }
+
+    private static int expect(String json, int pos, char expected) throws IOException {
+        if (pos >= json.length() || json.charAt(pos) != expected) {
+            throw new IOException("Expected '" + expected + "' in JSON at " + pos + ": "
+                    + json.substring(0, Math.min(json.length(), 200)));
+        }
+        return pos + 1;
+    }
+
+    private static int skipWhitespace(String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * ============== LanguageTree.java =============
+ *
+ * Several chains of languages, each giving one variant of the translation,
+ * arranged as a prefix tree. Chains that start with the same languages share
+ * those hops, so for the chains
+ *
+ *   en af pt sw en
+ *   en af pt ru en
+ *
+ * a text is translated en -> af -> pt once, and only then goes down the two
+ * branches pt -> sw -> en and pt -> ru -> en. N variants sharing a long prefix
+ * then cost far fewer requests than N runs of their own.
+ *
+ * Every chain starts and ends with the same language, the language of the game
+ * text.
+ */
+public class LanguageTree {
+
+    private final Node root;
+    private final List<String[]> chains = new ArrayList<>();
+
+    private static class Node {
+        final String lang;
+        final Map<String, Node> children = new LinkedHashMap<>();
+        final List<Integer> variants = new ArrayList<>(); /* Variants ending at this node */
+
+        Node(String lang) {
+            this.lang = lang;
+        }
+    }
+
+    /**
+     * @param homeLang language of the game text, which every chain starts and ends with.
+     * @param chains languages each variant goes through between the two home languages, in order.
+     */
+    public LanguageTree(String homeLang, List<String[]> chains) {
+        if (chains.isEmpty()) {
+            throw new IllegalArgumentException("At least one chain of languages is needed");
+        }
+
+        root = new Node(homeLang);
+        for (String[] langs : chains) {
+            Node node = root;
+            for (String lang : langs) {
+                node = node.children.computeIfAbsent(lang, Node::new);
+            }
+            /* Back home is a hop of its own, a leaf of the tree */
+            node = node.children.computeIfAbsent(homeLang, Node::new);
+            node.variants.add(this.chains.size());
+            this.chains.add(langs.clone());
+        }
+    }
+
+    /**
+     * Receives a hop of the tree to translate.
+     */
+    public interface Hop {
+        /**
+         * @param langFrom language of the texts.
+         * @param langTo language to translate the texts to.
+         * @param texts texts to translate.
+         * @return the translated texts, in the same order.
+         */
+        List<String> translate(String langFrom, String langTo, List<String> texts) throws IOException;
+    }
+
+    /**
+     * Translates texts down every branch of the tree, each hop only once.
+     *
+     * @param texts texts in the home language.
+     * @param hop translates the texts of one hop.
+     * @return for every variant, the texts translated through its chain, in the same order.
+     * @throws IOException if any hop failed.
+     */
+    public List<List<String>> translate(List<String> texts, Hop hop) throws IOException {
+        List<List<String>> variants = new ArrayList<>(chains.size());
+        for (int i = 0; i < chains.size(); i++) {
+            variants.add(null);
+        }
+        translate(root, texts, hop, variants);
+        return variants;
+    }
+
+    private void translate(Node node, List<String> texts, Hop hop, List<List<String>> variants) throws IOException {
+        for (int variant : node.variants) {
+            variants.set(variant, texts);
+        }
+        for (Node child : node.children.values()) {
+            translate(child, hop.translate(node.lang, child.lang, texts), hop, variants);
+        }
+    }
+
+    /**
+     * @return number of variants, i.e. chains in the tree.
+     */
+    public int variantCount() {
+        return chains.size();
+    }
+
+    /**
+     * @return number of hops a text goes through to get every variant.
+     */
+    public int hopCount() {
+        return countHops(root);
+    }
+
+    private static int countHops(Node node) {
+        int hops = 0;
+        for (Node child : node.children.values()) {
+            hops += 1 + countHops(child);
+        }
+        return hops;
+    }
+
+    /**
+     * Finds the hop whose texts are the longest compared to the home language texts they came from.
+     * The texts reaching a hop are as long as the home language texts times the expansion ratios
+     * of every hop before it.
+     *
+     * @param ratios expansion ratios of the language pairs.
+     * @return how many times longer the texts sent to that hop are, never less than 1 since the
+     * first hop is sent the home language texts themselves.
+     */
+    public double worstExpansion(ExpansionRatios ratios) {
+        return worstExpansion(root, 1, ratios);
+    }
+
+    private static double worstExpansion(Node node, double expansion, ExpansionRatios ratios) {
+        double worst = expansion;
+        for (Node child : node.children.values()) {
+            /* What comes back from the last hop home is not sent anywhere, so it does not count */
+            double childExpansion = expansion * ratios.ratio(node.lang, child.lang);
+            if (!child.children.isEmpty()) {
+                worst = Math.max(worst, worstExpansion(child, childExpansion, ratios));
+            }
+        }
+        return worst;
+    }
+
+    /**
+     * @return every chain of the tree, e.g. "en af pt sw en | en af pt ru en".
+     */
+    public String describe() {
+        StringBuilder description = new StringBuilder();
+        for (String[] langs : chains) {
+            if (description.length() > 0) description.append(" | ");
+            description.append(root.lang).append(' ');
+            for (String lang : langs) {
+                description.append(lang).append(' ');
+            }
+            description.append(root.lang);
+        }
+        return description.toString();
+    }
+
+    @Override
+    public String toString() {
+        int separateHops = 0;
+        for (String[] langs : chains) {
+            separateHops += langs.length + 1;
+        }
+        return describe() + " (" + hopCount() + " hops instead of " + separateHops + ")";
+    }
+}
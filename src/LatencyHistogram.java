@@ -0,0 +1,101 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * ============== LatencyHistogram.java =============
+ *
+ * Counts how long something took, e.g. the requests for one language pair,
+ * in buckets that grow exponentially: every power of two of microseconds is
+ * split into SUB_BUCKETS buckets, so any value is off by at most 1/SUB_BUCKETS
+ * of itself, from a microsecond up to hours. Recording is a couple of atomic
+ * increments and never allocates, so it is safe to call from every worker.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;   /* Buckets per power of two */
+    private static final int POWERS = 40;       /* 2^40 us is about 12 days */
+
+    private final AtomicLongArray buckets = new AtomicLongArray(POWERS * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records one measurement.
+     *
+     * @param nanos how long it took, in nanoseconds.
+     */
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucketOf(Math.max(0, nanos)));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return number of measurements recorded.
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of all measurements, in nanoseconds.
+     */
+    public long totalNanos() {
+        return totalNanos.get();
+    }
+
+    /**
+     * @return longest measurement, in nanoseconds.
+     */
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return upper bound of the bucket holding the given percentile, in nanoseconds, or 0 if empty.
+     */
+    public long percentileNanos(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < buckets.length(); bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= rank) {
+                return Math.min(upperBoundNanos(bucket), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    private static int bucketOf(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+
+        /* The top two bits after the leading one pick the sub bucket */
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (power - 2)) & (SUB_BUCKETS - 1);
+        int bucket = (power - 1) * SUB_BUCKETS + sub;
+        return Math.min(bucket, POWERS * SUB_BUCKETS - 1);
+    }
+
+    private static long upperBoundNanos(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return TimeUnit.MICROSECONDS.toNanos(bucket + 1);
+        }
+
+        int power = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        long micros = (1L << power) + ((long) (sub + 1) << (power - 2));
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+}
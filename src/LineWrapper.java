@@ -0,0 +1,108 @@
+/*
+ * ============== LineWrapper.java =============
+ *
+ * Adds the new lines to a translated chunk, which comes back from the
+ * translator all on one line. Dialogue is wrapped so each line fits in the
+ * dialogue box, measured with the width of every glyph instead of a count of
+ * characters, and lines are only broken at spaces so no word is cut in half.
+ * A word too wide for a whole line is left on a line of its own.
+ *
+ * Tags take up no room in the box. Every run of tags starts on a new line, as
+ * setNewLines() always did, and a tag is never split across lines, nested tags
+ * like <icon <PAD_A> 0.58 0 0 0> included. HTML entities left by the
+ * translator, like &#39;, are measured as the one character they stand for.
+ *
+ * wrap() appends to a buffer given by the caller and allocates nothing, so one
+ * LineWrapper can be shared by every thread, each with a buffer of its own.
+ */
+public class LineWrapper {
+
+    private final GlyphWidths widths;
+    private final int maxLineWidth;
+
+    /**
+     * @param widths width of every glyph.
+     * @param maxLineWidth widest a line of dialogue may be, in the units of widths.
+     */
+    public LineWrapper(GlyphWidths widths, int maxLineWidth) {
+        this.widths = widths;
+        this.maxLineWidth = maxLineWidth;
+    }
+
+    /**
+     * Wraps one translated chunk.
+     *
+     * @param chunk translated chunk, all on one line.
+     * @param out buffer the wrapped chunk is appended to, starting with a new line.
+     */
+    public void wrap(CharSequence chunk, StringBuilder out) {
+        int length = chunk.length();
+        int lineWidth = 0;
+        int lastSpace = -1;          /* Position in out of the last space on the current line */
+        int widthAfterSpace = 0;     /* Width of the current line after lastSpace */
+        boolean previousWasTag = true;
+        int pos = 0;
+
+        out.append('\n');
+        while (pos < length) {
+            char c = chunk.charAt(pos);
+
+            if (c == '<') {
+                int tagEnd = GameTextLexer.tagEnd(chunk, pos);
+                if (tagEnd >= 0) {
+                    if (!previousWasTag) {
+                        out.append('\n');
+                    }
+                    out.append(chunk, pos, tagEnd);
+                    pos = tagEnd;
+                    previousWasTag = true;
+                    lineWidth = 0;
+                    lastSpace = -1;
+                    continue;
+                }
+            }
+            previousWasTag = false;
+
+            /* An entity is drawn as one glyph */
+            int glyphLength = 1;
+            char glyph = c;
+            if (c == '&') {
+                int entityLength = GameTextLexer.entityLength(chunk, pos);
+                if (entityLength > 0) {
+                    glyphLength = entityLength;
+                    glyph = GameTextLexer.entityChar(chunk, pos);
+                }
+            }
+            int width = widths.width(glyph);
+
+            if (c == ' ') {
+                if (lineWidth + width > maxLineWidth) {
+                    /* The line is full, the space becomes the line break */
+                    out.append('\n');
+                    lineWidth = 0;
+                    lastSpace = -1;
+                }
+                else {
+                    lastSpace = out.length();
+                    widthAfterSpace = 0;
+                    out.append(' ');
+                    lineWidth += width;
+                }
+                pos++;
+                continue;
+            }
+
+            if (lineWidth + width > maxLineWidth && lastSpace >= 0) {
+                /* Move the word being written to the next line */
+                out.setCharAt(lastSpace, '\n');
+                lineWidth = widthAfterSpace;
+                lastSpace = -1;
+            }
+
+            out.append(chunk, pos, pos + glyphLength);
+            pos += glyphLength;
+            lineWidth += width;
+            widthAfterSpace += width;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+ * ============== LoadTest.java =============
+ *
+ * Runs BadTranslation end to end against a StubTranslationServer and reports
+ * how fast it went, so changes to concurrency, batching and retries can be
+ * measured on one machine without the network or the quota of the real script.
+ *
+ *   java LoadTest [--runs 3] [stub settings] [--chain ...] files or directories
+ *
+ * e.g. java LoadTest --runs 3 --latency-millis 300 --jitter-millis 200 --error-rate 0.02 text_files
+ *
+ * The stub settings are the options of StubTranslationServer.Settings, and
+ * --chain is passed on to BadTranslation. Every run starts a fresh stub, copies
+ * the text files into an empty directory and runs BadTranslation there in a
+ * JVM of its own, on the same classpath. The translation cache, journals and
+ * run_metrics.json of the run are then all its own, so no run is sped up by
+ * an earlier one and the real ones are never touched. After each run, the
+ * wall time, chunks per second and counts from its run_metrics.json are
+ * printed along with what the stub saw.
+ */
+public class LoadTest {
+
+    private static final String RUNS_OPTION = "--runs";
+    private static final String CHAIN_OPTION = "--chain";
+    private static final String TEXT_DIRECTORY = "text_files"; /* BadTranslation keeps its state files here */
+    private static final String METRICS_FILE = TEXT_DIRECTORY + "/run_metrics.json";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> rest = new ArrayList<>(List.of(args));
+        StubTranslationServer.Settings settings = StubTranslationServer.Settings.parse(rest);
+
+        int runs = 1;
+        List<String> chains = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < rest.size(); i++) {
+            if (rest.get(i).equals(RUNS_OPTION) && i + 1 < rest.size()) {
+                runs = Integer.parseInt(rest.get(++i));
+            }
+            else if (rest.get(i).equals(CHAIN_OPTION) && i + 1 < rest.size()) {
+                chains.add(CHAIN_OPTION);
+                chains.add(rest.get(++i));
+            }
+            else {
+                paths.add(rest.get(i));
+            }
+        }
+
+        List<String> textNames = BadTranslation.findTextFiles(paths.toArray(new String[0]));
+        if (textNames.isEmpty()) {
+            System.out.println("No text files to translate in " + paths);
+            return;
+        }
+
+        System.out.println("Stub: " + settings);
+        for (int run = 1; run <= runs; run++) {
+            System.out.println("Run " + run + " of " + runs + ": " + runOnce(settings, chains, textNames));
+        }
+    }
+
+    /**
+     * Translates the files once, against a stub of their own, in an empty directory.
+     *
+     * @return what the run did, as one line.
+     */
+    private static String runOnce(StubTranslationServer.Settings settings, List<String> chains,
+                                  List<String> textNames) throws IOException, InterruptedException {
+        Path workDir = Files.createTempDirectory("loadtest");
+        StubTranslationServer stub = new StubTranslationServer(0, settings);
+        try {
+            Path textDir = Files.createDirectory(workDir.resolve(TEXT_DIRECTORY));
+            for (String textName : textNames) {
+                Path textFile = Path.of(textName + ".txt");
+                Files.copy(textFile, textDir.resolve(textFile.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            List<String> command = new ArrayList<>(List.of(
+                    Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-Dfile.encoding=UTF-8",
+                    "-cp", System.getProperty("java.class.path"),
+                    "BadTranslation",
+                    "--endpoint", stub.endpoint()));
+            command.addAll(chains);
+            command.add(TEXT_DIRECTORY);
+
+            stub.start();
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command)
+                    .directory(workDir.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(workDir.resolve("run.log").toFile())
+                    .start();
+            int exitCode = process.waitFor();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Path metricsFile = workDir.resolve(METRICS_FILE);
+            if (exitCode != 0 || !Files.exists(metricsFile)) {
+                return "failed with exit code " + exitCode + ":\n"
+                        + Files.readString(workDir.resolve("run.log"), StandardCharsets.UTF_8);
+            }
+
+            String metrics = Files.readString(metricsFile, StandardCharsets.UTF_8);
+            long chunks = number(metrics, "chunks");
+            return String.format(Locale.ROOT, "%.2f s wall, %d chunks, %.1f chunks/s, %.0f chars/s, "
+                            + "%d requests (%d retries, %d throttled, %d hedges, %d failed), "
+                            + "%d chunks repaired of %d broken. Stub: %s",
+                    seconds, chunks, chunks / seconds, number(metrics, "chars") / seconds,
+                    number(metrics, "requests"), number(metrics, "retries"), number(metrics, "throttled"),
+                    number(metrics, "hedges"), number(metrics, "failedRequests"), number(metrics, "repairedChunks"),
+                    number(metrics, "invalidChunks"), stub.summary());
+        }
+        finally {
+            stub.stop();
+            deleteDirectory(workDir);
+        }
+    }
+
+    /**
+     * @return the value of a top level number in run_metrics.json, or -1 if it is missing.
+     */
+    private static long number(String json, String name) {
+        Matcher matcher = Pattern.compile("\"" + name + "\": (\\d+)").matcher(json);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * ============== MessageParser.java =============
+ *
+ * Splits formatted game text into the parts that need translating and the
+ * parts that must come out exactly as they went in. A game text file is a list
+ * of messages, each one an identifier and its text, every one of them ended by
+ * a null character:
+ *
+ *   place_town\0Flipside\0place_stg1\0Lineland\0...
+ *
+ * which formatting turns into
+ *
+ *   <place_town><NUL>Flipside<NUL><place_stg1><NUL>Lineland<NUL>...
+ *
+ * The parser gives back a list of spans. Markup spans hold the identifiers,
+ * the <NUL> tags, control tags inside the text like <k> or
+ * <icon <PAD_A> 0.58 0 0 0>, and the whitespace around the text. Dialogue spans
+ * hold the text of the messages between them, and are the only spans sent to
+ * the translator. Joining the spans back together in order gives back the
+ * exact text that was parsed.
+ *
+ * A <NUL> right after an identifier always starts the text of a message, and
+ * any other <NUL> ends it. Text of a message can hold <NUL>s of its own, and
+ * game files can be spliced together, so counting <NUL>s alone would get out of
+ * step for the rest of the file; going by the identifiers puts the parser back
+ * in step at the next message. The text before the first <NUL> of a file is
+ * taken as dialogue, since a file that does not start with an identifier
+ * starts in the middle of a message.
+ *
+ * A chunk that holds text outside of the tags but no dialogue at all is not in
+ * this format, so it is given back as one dialogue span and translated whole,
+ * the way every chunk was before the parser.
+ *
+ * A chunk can end in the middle of a message, so the parser remembers whether
+ * it is inside a message's text from one chunk to the next. The chunks of one
+ * file must therefore go through the same parser, in order.
+ */
+public class MessageParser {
+
+    private static final String NUL_TAG = "<NUL>";
+
+    /**
+     * A piece of parsed text.
+     */
+    public static class Span {
+        public final String text;
+        /* Whether the span is the text of a message, to be translated */
+        public final boolean dialogue;
+
+        Span(String text, boolean dialogue) {
+            this.text = text;
+            this.dialogue = dialogue;
+        }
+    }
+
+    /* True between the <NUL> after an identifier and the <NUL> ending its text */
+    private boolean inText = true;
+
+    /* True if the last tag was an identifier, with nothing but whitespace after it */
+    private boolean afterIdentifier = false;
+
+    /* True if the chunk being parsed has letters or digits outside of tags and dialogue */
+    private boolean strayText;
+
+    /**
+     * Parses the next chunk of the file.
+     *
+     * @param chunk formatted text of the chunk.
+     * @return the spans of the chunk, in order.
+     */
+    public List<Span> parse(String chunk) {
+        List<Span> spans = new ArrayList<>();
+        StringBuilder markup = new StringBuilder();
+        int length = chunk.length();
+        int textStart = 0;
+        int pos = 0;
+        strayText = false;
+
+        while (pos < length) {
+            char c = chunk.charAt(pos);
+            if (c != '<') {
+                afterIdentifier &= Character.isWhitespace(c);
+                pos++;
+                continue;
+            }
+
+            int tagEnd = GameTextLexer.tagEnd(chunk, pos);
+            if (tagEnd < 0) {
+                afterIdentifier = false;
+                pos++; /* A lone < is just text */
+                continue;
+            }
+
+            addText(chunk, textStart, pos, spans, markup);
+            markup.append(chunk, pos, tagEnd);
+            if (chunk.startsWith(NUL_TAG, pos)) {
+                inText = afterIdentifier || !inText;
+                afterIdentifier = false;
+            }
+            else {
+                afterIdentifier = GameTextLexer.isIdentifier(chunk, pos, tagEnd);
+            }
+            pos = tagEnd;
+            textStart = pos;
+        }
+
+        addText(chunk, textStart, length, spans, markup);
+        if (markup.length() > 0) {
+            spans.add(new Span(markup.toString(), false));
+        }
+
+        if (strayText && !hasDialogue(spans)) {
+            return List.of(new Span(chunk, true));
+        }
+        return spans;
+    }
+
+    /**
+     * Adds chunk[from, to), which holds no tags, to the spans. Only the part of a message's text
+     * holding letters or digits is dialogue; the whitespace around it and identifiers stay markup.
+     */
+    private void addText(String chunk, int from, int to, List<Span> spans, StringBuilder markup) {
+        int start = from;
+        int end = to;
+        if (inText) {
+            while (start < end && Character.isWhitespace(chunk.charAt(start))) start++;
+            while (end > start && Character.isWhitespace(chunk.charAt(end - 1))) end--;
+        }
+
+        if (!inText || !hasLetterOrDigit(chunk, start, end)) {
+            strayText |= !inText && hasLetterOrDigit(chunk, from, to);
+            markup.append(chunk, from, to);
+            return;
+        }
+
+        markup.append(chunk, from, start);
+        if (markup.length() > 0) {
+            spans.add(new Span(markup.toString(), false));
+            markup.setLength(0);
+        }
+        spans.add(new Span(chunk.substring(start, end), true));
+        markup.append(chunk, end, to);
+    }
+
+    private static boolean hasDialogue(List<Span> spans) {
+        for (Span span : spans) {
+            if (span.dialogue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasLetterOrDigit(String chunk, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (Character.isLetterOrDigit(chunk.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * ============== Metrics.java =============
+ *
+ * Instrumentation for one run, to see which language hop or text stage holds
+ * the run up:
+ *   - a latency histogram of the requests for every language pair
+ *   - time spent and characters handled in each text stage
+ *   - chunks and characters translated, for throughput
+ *   - requests, cache hits and cache misses
+ *   - message segments sent, and segments that reused a translation
+ *   - different message segments unchanged since the last run, taken from its
+ *     manifest, counted like the manifest's summary counts them
+ *   - chunks that failed validation, and how many of them were repaired
+ *
+ * Everything is counted with atomics, so recording is cheap and can be done
+ * from any thread. At the end of the run toJson() gives a summary of it all.
+ *
+ * Each request and each file's stage totals are also sent to Java Flight
+ * Recorder as custom events, under the "BadTranslation" category, e.g. with
+ *   java -XX:StartFlightRecording=filename=run.jfr BadTranslation ...
+ * When no recording is running the events cost next to nothing.
+ */
+public class Metrics {
+
+    /**
+     * Text processing stages done around the translations.
+     */
+    public enum Stage {
+        FORMAT("format"),
+        SET_NEW_LINES("setNewLines"),
+        UNFORMAT("unformat");
+
+        private final String jsonName;
+
+        Stage(String jsonName) {
+            this.jsonName = jsonName;
+        }
+    }
+
+    @Name("badtranslation.TranslationRequest")
+    @Label("Translation Request")
+    @Category("BadTranslation")
+    @StackTrace(false)
+    static class RequestEvent extends Event {
+        @Label("From")
+        String langFrom;
+        @Label("To")
+        String langTo;
+        @Label("Texts")
+        int texts;
+        @Label("Characters")
+        int chars;
+        @Label("Succeeded")
+        boolean succeeded;
+
+        transient long startNanos; /* Not recorded, JFR only keeps the event's own duration */
+    }
+
+    @Name("badtranslation.TextStage")
+    @Label("Text Stage")
+    @Category("BadTranslation")
+    @StackTrace(false)
+    static class StageEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Stage")
+        String stage;
+        @Label("Characters")
+        @DataAmount(DataAmount.BYTES)
+        long chars;
+        @Label("Time Spent")
+        @Timespan(Timespan.NANOSECONDS)
+        long timeSpent;
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LatencyHistogram> requestLatency = new ConcurrentHashMap<>();
+    private final LongAdder[] stageNanos = newAdders(Stage.values().length);
+    private final LongAdder[] stageChars = newAdders(Stage.values().length);
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder chars = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder requestChars = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder uniqueSegments = new LongAdder();
+    private final LongAdder duplicateSegments = new LongAdder();
+    private final LongAdder unchangedSegments = new LongAdder();
+    private final LongAdder invalidChunks = new LongAdder();
+    private final LongAdder repairedChunks = new LongAdder();
+
+    /**
+     * Starts timing one request.
+     *
+     * @param langFrom language translated from.
+     * @param langTo language translated to.
+     * @param texts texts sent in the request.
+     * @return the request's event, to hand to endRequest() once it is answered.
+     */
+    public static RequestEvent beginRequest(String langFrom, String langTo, List<String> texts) {
+        RequestEvent event = new RequestEvent();
+        event.langFrom = langFrom;
+        event.langTo = langTo;
+        event.texts = texts.size();
+        for (String text : texts) {
+            event.chars += text.length();
+        }
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Records one answered request, retries included, and sends it to Flight Recorder.
+     *
+     * @param event event returned by beginRequest().
+     * @param succeeded whether the translations came back.
+     */
+    public void endRequest(RequestEvent event, boolean succeeded) {
+        event.end();
+        long nanos = System.nanoTime() - event.startNanos;
+        requestChars.add(event.chars);
+        requestLatency.computeIfAbsent(event.langFrom + " -> " + event.langTo, pair -> new LatencyHistogram())
+                .record(nanos);
+        if (!succeeded) {
+            failedRequests.increment();
+        }
+
+        if (event.shouldCommit()) {
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    /**
+     * Adds time spent in a text stage.
+     *
+     * @param stage the stage.
+     * @param nanos time spent.
+     * @param chars characters handled.
+     */
+    public void stage(Stage stage, long nanos, long chars) {
+        stageNanos[stage.ordinal()].add(nanos);
+        stageChars[stage.ordinal()].add(chars);
+    }
+
+    /**
+     * Records one chunk written to its final translation files.
+     *
+     * @param chars characters of the translated chunk, over every variant written.
+     */
+    public void chunk(int chars) {
+        chunks.increment();
+        this.chars.add(chars);
+    }
+
+    public void cacheHit() {
+        cacheHits.increment();
+    }
+
+    public void cacheMiss() {
+        cacheMisses.increment();
+    }
+
+    /**
+     * @param unique message segments sent to be translated.
+     * @param duplicates message segments that reused the translation of one sent before.
+     */
+    public void segments(int unique, int duplicates) {
+        uniqueSegments.add(unique);
+        duplicateSegments.add(duplicates);
+    }
+
+    /**
+     * Records the message segments of a file taken from the manifest of the last run instead of being
+     * translated, each counted once however often it occurs.
+     *
+     * @param count different segments found unchanged.
+     */
+    public void unchangedSegments(int count) {
+        unchangedSegments.add(count);
+    }
+
+    /**
+     * Records one translated chunk that failed validation.
+     *
+     * @param repaired whether translating its broken segments again fixed it.
+     */
+    public void invalidChunk(boolean repaired) {
+        invalidChunks.increment();
+        if (repaired) {
+            repairedChunks.increment();
+        }
+    }
+
+    /**
+     * Sends the stage totals of one file to Flight Recorder.
+     *
+     * @param file the file the stages were done on.
+     * @param stage the stage.
+     * @param nanos time spent on the file in the stage.
+     * @param chars characters of the file handled in the stage.
+     */
+    public static void commitStage(String file, Stage stage, long nanos, long chars) {
+        StageEvent event = new StageEvent();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.stage = stage.jsonName;
+            event.chars = chars;
+            event.timeSpent = nanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param requests requests sent to the script, retries included.
+     * @param retries requests that were retries.
+     * @param throttled requests the script pushed back on.
+     * @param hedges requests sent a second time for being slow.
+     * @param hedgesWon requests sent a second time where the second reply came first.
+     * @return summary of the run so far, as a JSON object.
+     */
+    public String toJson(int requests, int retries, int throttled, int hedges, int hedgesWon) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        StringBuilder json = new StringBuilder();
+
+        json.append("{\n");
+        json.append("  \"seconds\": ").append(format(seconds)).append(",\n");
+        json.append("  \"chunks\": ").append(chunks.sum()).append(",\n");
+        json.append("  \"chars\": ").append(chars.sum()).append(",\n");
+        json.append("  \"chunksPerSecond\": ").append(format(chunks.sum() / seconds)).append(",\n");
+        json.append("  \"charsPerSecond\": ").append(format(chars.sum() / seconds)).append(",\n");
+        json.append("  \"requests\": ").append(requests).append(",\n");
+        json.append("  \"retries\": ").append(retries).append(",\n");
+        json.append("  \"throttled\": ").append(throttled).append(",\n");
+        json.append("  \"hedges\": ").append(hedges).append(",\n");
+        json.append("  \"hedgesWon\": ").append(hedgesWon).append(",\n");
+        json.append("  \"failedRequests\": ").append(failedRequests.sum()).append(",\n");
+        json.append("  \"requestChars\": ").append(requestChars.sum()).append(",\n");
+        json.append("  \"cacheHits\": ").append(cacheHits.sum()).append(",\n");
+        json.append("  \"cacheMisses\": ").append(cacheMisses.sum()).append(",\n");
+        json.append("  \"uniqueSegments\": ").append(uniqueSegments.sum()).append(",\n");
+        json.append("  \"duplicateSegments\": ").append(duplicateSegments.sum()).append(",\n");
+        json.append("  \"unchangedSegments\": ").append(unchangedSegments.sum()).append(",\n");
+        json.append("  \"invalidChunks\": ").append(invalidChunks.sum()).append(",\n");
+        json.append("  \"repairedChunks\": ").append(repairedChunks.sum()).append(",\n");
+
+        json.append("  \"stages\": {");
+        for (Stage stage : Stage.values()) {
+            json.append(stage.ordinal() == 0 ? "\n" : ",\n");
+            json.append("    \"").append(stage.jsonName).append("\": { \"millis\": ")
+                    .append(format(stageNanos[stage.ordinal()].sum() / 1e6))
+                    .append(", \"chars\": ").append(stageChars[stage.ordinal()].sum()).append(" }");
+        }
+        json.append("\n  },\n");
+
+        /* Sorted so the summaries of different runs line up */
+        json.append("  \"requestLatencyMillis\": {");
+        boolean first = true;
+        for (Map.Entry<String, LatencyHistogram> pair : new TreeMap<>(requestLatency).entrySet()) {
+            LatencyHistogram histogram = pair.getValue();
+            json.append(first ? "\n" : ",\n");
+            json.append("    \"").append(pair.getKey()).append("\": { ")
+                    .append("\"count\": ").append(histogram.count())
+                    .append(", \"mean\": ").append(millis(histogram.totalNanos() / histogram.count()))
+                    .append(", \"p50\": ").append(millis(histogram.percentileNanos(50)))
+                    .append(", \"p95\": ").append(millis(histogram.percentileNanos(95)))
+                    .append(", \"p99\": ").append(millis(histogram.percentileNanos(99)))
+                    .append(", \"max\": ").append(millis(histogram.maxNanos())).append(" }");
+            first = false;
+        }
+        json.append(first ? "}\n" : "\n  }\n");
+
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Writes toJson() to a file, creating its directory if it does not exist yet.
+     *
+     * @param fileName file to write the summary to.
+     * @param requests requests sent to the script, retries included.
+     * @param retries requests that were retries.
+     * @param throttled requests the script pushed back on.
+     * @param hedges requests sent a second time for being slow.
+     * @param hedgesWon requests sent a second time where the second reply came first.
+     * @throws IOException upon an issue writing the file.
+     */
+    public void writeJson(String fileName, int requests, int retries, int throttled, int hedges, int hedgesWon)
+            throws IOException {
+        Path file = Path.of(fileName).toAbsolutePath();
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, toJson(requests, retries, throttled, hedges, hedgesWon),
+                StandardCharsets.UTF_8);
+    }
+
+    private static String millis(long nanos) {
+        return format(nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static String format(double value) {
+        return Double.isFinite(value) ? String.format(Locale.ROOT, "%.1f", value) : "0";
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
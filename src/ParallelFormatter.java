@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * ============== ParallelFormatter.java =============
+ *
+ * Formats or unformats a whole game text file on a ForkJoinPool, so a big file
+ * is done on every core instead of line by line on one thread.
+ *
+ * The lexer does each line on its own, carrying nothing over from the line
+ * before, so the file is cut in half again and again, each cut moved to the
+ * start of the next line, until the parts are at most segmentBytes long. A
+ * message that runs over several lines can be cut between its lines, since
+ * its lines come out the same either way. Each part is read through its own
+ * GameTextReader slice, and the parts are joined back in file order.
+ *
+ * Only the lexing is done in parallel. Where a chunk ends depends on the
+ * length of everything before it, so BadTranslation still gathers the lines
+ * into chunks in one pass over the results, and the output is the same as
+ * the one done line by line.
+ *
+ * The results of the whole file are held in memory until they are joined, so
+ * this is only used to format or unformat a file on its own. The
+ * TranslationPipeline streams its files line by line instead.
+ */
+public class ParallelFormatter {
+
+    private final ForkJoinPool pool;
+    private final int segmentBytes;   /* Largest part of the file done as one task */
+
+    /**
+     * @param pool pool to do the parts of the files on.
+     * @param segmentBytes largest part of a file done as one task, in bytes.
+     */
+    public ParallelFormatter(ForkJoinPool pool, int segmentBytes) {
+        this.pool = pool;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * The lines of one part of the file, done.
+     */
+    public static class Segment {
+        private final StringBuilder text = new StringBuilder();
+        private int[] lineEnds = new int[64];   /* End of every line in text */
+        private int lineCount = 0;
+        private long nanos = 0;
+        private long chars = 0;
+
+        public int lineCount() {
+            return lineCount;
+        }
+
+        /**
+         * @param line index of a line of the segment.
+         * @return the line, without its line break.
+         */
+        public CharSequence line(int line) {
+            int start = (line == 0) ? 0 : lineEnds[line - 1];
+            return CharBuffer.wrap(text, start, lineEnds[line]);
+        }
+
+        /**
+         * @return time spent in the lexer on the segment.
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        /**
+         * @return characters of the segment given to the lexer.
+         */
+        public long chars() {
+            return chars;
+        }
+
+        private void endLine() {
+            if (lineCount == lineEnds.length) {
+                lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+            }
+            lineEnds[lineCount++] = text.length();
+        }
+    }
+
+    private interface Lexer {
+        void apply(CharSequence line, StringBuilder out);
+    }
+
+    /**
+     * Formats every line of a file, as GameTextLexer.format() does.
+     *
+     * @param file reader of the whole file, which is not read from, only sliced.
+     * @return the formatted lines, in parts in file order.
+     * @throws IOException if the file is not valid text.
+     */
+    public List<Segment> format(GameTextReader file) throws IOException {
+        return run(file, GameTextLexer::format, false);
+    }
+
+    /**
+     * Unformats every line of a file, as GameTextLexer.unformat() does. Empty lines, which
+     * end the chunks, are left out.
+     *
+     * @param file reader of the whole file, which is not read from, only sliced.
+     * @return the unformatted lines, in parts in file order.
+     * @throws IOException if the file is not valid text.
+     */
+    public List<Segment> unformat(GameTextReader file) throws IOException {
+        return run(file, GameTextLexer::unformat, true);
+    }
+
+    private List<Segment> run(GameTextReader file, Lexer lexer, boolean skipEmpty) throws IOException {
+        try {
+            return pool.invoke(new SegmentTask(file, 0, file.size(), lexer, skipEmpty));
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class SegmentTask extends RecursiveTask<List<Segment>> {
+        private static final long serialVersionUID = 1L;
+
+        private final GameTextReader file;
+        private final int start;
+        private final int end;
+        private final Lexer lexer;
+        private final boolean skipEmpty;
+
+        SegmentTask(GameTextReader file, int start, int end, Lexer lexer, boolean skipEmpty) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.lexer = lexer;
+            this.skipEmpty = skipEmpty;
+        }
+
+        @Override
+        protected List<Segment> compute() {
+            int middle = (end - start > segmentBytes) ? file.nextLineStart(start + (end - start) / 2) : end;
+            if (middle >= end) {
+                /* Small enough, or a single line too long to cut */
+                List<Segment> segments = new ArrayList<>(1);
+                segments.add(lex());
+                return segments;
+            }
+
+            SegmentTask second = new SegmentTask(file, middle, end, lexer, skipEmpty);
+            second.fork();
+            List<Segment> segments = new SegmentTask(file, start, middle, lexer, skipEmpty).compute();
+            segments.addAll(second.join());
+            return segments;
+        }
+
+        private Segment lex() {
+            Segment segment = new Segment();
+            try (GameTextReader reader = file.slice(start, end)) {
+                CharSequence line;
+                while ((line = reader.readLine()) != null) {
+                    if (skipEmpty && line.length() == 0) {
+                        continue;
+                    }
+                    long begin = System.nanoTime();
+                    lexer.apply(line, segment.text);
+                    segment.nanos += System.nanoTime() - begin;
+                    segment.chars += line.length();
+                    segment.endLine();
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return segment;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ============== RateLimiter.java =============
+ *
+ * Token bucket shared by every worker, spacing out the requests sent to the
+ * translation script. The bucket refills at the current rate and holds up to
+ * burst tokens, so a handful of requests can go out together after a quiet
+ * spell, but over time no more than rate requests go out per second.
+ *
+ * The script does not say what rate it allows, so the limiter learns it: each
+ * request that succeeds raises the rate a little, and each 429 halves it. A
+ * 5xx on its own says little, scripts fail now and then under any load, so
+ * only serverErrorsToThrottle of them in a row, without a success in between,
+ * halve the rate. The rate settles just under the point where the script
+ * starts pushing back.
+ *
+ * reserve() never blocks. It hands back how long the caller has to wait for
+ * its token, so requests can be scheduled instead of parking a worker thread.
+ * tryAcquire() only takes a token that is free right away.
+ */
+public class RateLimiter {
+
+    private final double minRate;
+    private final double maxRate;
+    private final double increase;
+    private final double burst;
+    private final int serverErrorsToThrottle;
+
+    private double rate;      /* Requests per second currently allowed */
+    private double tokens;    /* Negative when requests are already waiting for tokens */
+    private long lastRefill;  /* System.nanoTime() of the last refill */
+    private int serverErrors; /* 5xx answers since the last success */
+
+    /**
+     * @param initialRate requests per second allowed at the start.
+     * @param minRate lowest the rate is ever lowered to, in requests per second.
+     * @param maxRate highest the rate is ever raised to, in requests per second.
+     * @param increase how much each successful request raises the rate, in requests per second.
+     * @param burst most requests allowed to go out at once after a quiet spell.
+     * @param serverErrorsToThrottle 5xx answers in a row that halve the rate, like a 429 does.
+     */
+    public RateLimiter(double initialRate, double minRate, double maxRate, double increase, int burst,
+                       int serverErrorsToThrottle) {
+        if (minRate <= 0 || minRate > maxRate || burst < 1 || serverErrorsToThrottle < 1) {
+            throw new IllegalArgumentException(
+                    "Need 0 < minRate <= maxRate, burst >= 1 and serverErrorsToThrottle >= 1");
+        }
+        this.serverErrorsToThrottle = serverErrorsToThrottle;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increase = increase;
+        this.burst = burst;
+        this.rate = Math.max(minRate, Math.min(maxRate, initialRate));
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token for one request.
+     *
+     * @return nanoseconds to wait before sending the request, 0 if it can go right away.
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens--;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Takes a token only if one is free right now, for a request only worth sending if it does not
+     * have to wait, e.g. a hedge. No token is free while other requests wait for theirs.
+     *
+     * @return true if a token was taken.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Raises the rate after a request went through.
+     */
+    public synchronized void onSuccess() {
+        refill();
+        serverErrors = 0;
+        rate = Math.min(maxRate, rate + increase);
+    }
+
+    /**
+     * Halves the rate after the script pushed back on a request with a 429.
+     */
+    public synchronized void onThrottle() {
+        refill();
+        rate = Math.max(minRate, rate / 2);
+    }
+
+    /**
+     * Counts a 5xx answer, and halves the rate once serverErrorsToThrottle of them came in a row.
+     */
+    public synchronized void onServerError() {
+        if (++serverErrors >= serverErrorsToThrottle) {
+            serverErrors = 0;
+            onThrottle();
+        }
+    }
+
+    /**
+     * @return requests per second currently allowed.
+     */
+    public synchronized double rate() {
+        return rate;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * ============== RequestBudget.java =============
+ *
+ * Keeps count of the requests made to the translation script during one run,
+ * shared by every file and every worker. The free quota of the script only
+ * allows so many translations per day, so once the budget is used up the
+ * remaining chunks are left for the next run instead of failing one request
+ * at a time against the quota.
+ */
+public class RequestBudget {
+
+    private final int maxRequests;
+    private final AtomicInteger used = new AtomicInteger();
+
+    /**
+     * @param maxRequests maximum number of requests allowed during this run.
+     */
+    public RequestBudget(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Takes one request out of the budget. Must be called before every request.
+     *
+     * @throws IOException if the budget is already used up.
+     */
+    public void acquire() throws IOException {
+        if (!tryAcquire()) {
+            throw new IOException("Request budget of " + maxRequests + " requests used up for this run");
+        }
+    }
+
+    /**
+     * Takes one request out of the budget if there is one left, for a request that can be skipped.
+     *
+     * @return true if a request was taken.
+     */
+    public boolean tryAcquire() {
+        return used.getAndUpdate(count -> count < maxRequests ? count + 1 : count) < maxRequests;
+    }
+
+    /**
+     * @return number of requests made so far.
+     */
+    public int used() {
+        return used.get();
+    }
+
+    /**
+     * @return number of requests that can still be made.
+     */
+    public int remaining() {
+        return maxRequests - used.get();
+    }
+}
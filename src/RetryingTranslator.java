@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * ============== RetryingTranslator.java =============
+ *
+ * Wraps another Translator so that a failed request is tried again instead of
+ * losing the chunk. Every request, first try or retry, first takes one request
+ * out of the RequestBudget and waits for a token from the RateLimiter, so the
+ * budget counts exactly what was sent and all workers together stay within the
+ * rate the script allows.
+ *
+ * A 429 lowers the rate of the RateLimiter right away, a 5xx only counts
+ * towards lowering it, since one now and then is no sign of too many requests.
+ *
+ * Timeouts, dropped connections, 408, 429 and 5xx answers are retried up to
+ * maxAttempts times, waiting a random time between 0 and baseBackoff * 2^n
+ * (at most maxBackoff) before retry n, or longer if the script asked for it
+ * with Retry-After. Spreading the retries out randomly keeps the workers that
+ * were throttled together from all coming back at the same moment. Other
+ * answers, like a 400 or a malformed body, fail right away since sending the
+ * same request again would not help. So does any failure that is not an
+ * IOException, e.g. a NullPointerException in the delegate, since that is a
+ * bug and not a problem with the network or the script.
+ *
+ * Nothing here blocks: waits are scheduled on CompletableFuture's delayed
+ * executor.
+ */
+public class RetryingTranslator implements Translator {
+
+    private final Translator delegate;
+    private final RateLimiter limiter;
+    private final RequestBudget budget;
+    private final int maxAttempts;
+    private final long baseBackoffNanos;
+    private final long maxBackoffNanos;
+
+    private final AtomicInteger retries = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+
+    /**
+     * @param delegate translator actually sending the requests.
+     * @param limiter rate limiter shared by every request.
+     * @param budget budget every request, including retries, is taken out of.
+     * @param maxAttempts most times one request is sent before giving up.
+     * @param baseBackoff longest wait before the first retry, doubled for every retry after it.
+     * @param maxBackoff longest wait before any retry, unless the script asks for longer.
+     */
+    public RetryingTranslator(Translator delegate, RateLimiter limiter, RequestBudget budget,
+                              int maxAttempts, Duration baseBackoff, Duration maxBackoff) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.delegate = delegate;
+        this.limiter = limiter;
+        this.budget = budget;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffNanos = baseBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateAsync(String langFrom, String langTo, List<String> texts) {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        attempt(langFrom, langTo, texts, 1, result);
+        return result;
+    }
+
+    /**
+     * @return number of requests sent again after failing.
+     */
+    public int retries() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of requests the script pushed back on with a 429.
+     */
+    public int throttled() {
+        return throttled.get();
+    }
+
+    /**
+     * Takes a request from the budget, waits for a token and sends the request.
+     */
+    private void attempt(String langFrom, String langTo, List<String> texts, int attempt,
+                         CompletableFuture<List<String>> result) {
+        try {
+            budget.acquire();
+        }
+        catch (IOException e) {
+            /* The budget is gone for the rest of the run, no point waiting for it */
+            result.completeExceptionally(e);
+            return;
+        }
+
+        after(limiter.reserve(), result, () -> delegate.translateAsync(langFrom, langTo, texts)
+                .whenComplete((translated, error) -> {
+                    Throwable failure = (error != null) ? unwrap(error) : null;
+                    if (failure == null) {
+                        limiter.onSuccess();
+                        result.complete(translated);
+                    }
+                    else if (failure instanceof IOException) {
+                        retryOrFail(langFrom, langTo, texts, attempt, (IOException) failure, result);
+                    }
+                    else {
+                        result.completeExceptionally(failure); /* A bug, sending it again would not help */
+                    }
+                }));
+    }
+
+    private void retryOrFail(String langFrom, String langTo, List<String> texts, int attempt,
+                             IOException failure, CompletableFuture<List<String>> result) {
+        ScriptResponseException response = (failure instanceof ScriptResponseException)
+                ? (ScriptResponseException) failure : null;
+
+        if (response != null && response.isThrottled()) {
+            throttled.incrementAndGet();
+            limiter.onThrottle();
+        }
+        else if (response != null && response.isServerError()) {
+            limiter.onServerError();
+        }
+
+        /* A failed connection or timeout may work next time, a bad answer will not */
+        boolean retryable = (response == null) || response.isRetryable();
+        if (!retryable || attempt >= maxAttempts) {
+            result.completeExceptionally(failure);
+            return;
+        }
+
+        long backoff = backoffNanos(attempt);
+        if (response != null && response.retryAfter() != null) {
+            backoff = Math.max(backoff, response.retryAfter().toNanos());
+        }
+        retries.incrementAndGet();
+        System.out.println("Retrying " + langFrom + " -> " + langTo + " in "
+                + TimeUnit.NANOSECONDS.toMillis(backoff) + " ms (attempt " + (attempt + 1) + " of "
+                + maxAttempts + "): " + failure.getMessage());
+
+        after(backoff, result, () -> attempt(langFrom, langTo, texts, attempt + 1, result));
+    }
+
+    /**
+     * @return a random wait between 0 and baseBackoff * 2^(attempt - 1), capped at maxBackoff.
+     */
+    private long backoffNanos(int attempt) {
+        long ceiling = baseBackoffNanos << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffNanos) {
+            ceiling = maxBackoffNanos;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Runs the task after a wait. If the task throws, result is failed with what it threw, since
+     * nothing else would ever complete it.
+     */
+    private static void after(long nanos, CompletableFuture<List<String>> result, Runnable task) {
+        Runnable guarded = () -> {
+            try {
+                task.run();
+            }
+            catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+        };
+        if (nanos <= 0) {
+            guarded.run();
+        }
+        else {
+            CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS).execute(guarded);
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.time.Duration;
+
+/*
+ * ============== ScriptResponseException.java =============
+ *
+ * Thrown by a Translator when the translation script answered, but not with
+ * the translations asked for, e.g. an error status or a malformed body. Keeps
+ * the HTTP status so RetryingTranslator can tell a request worth retrying,
+ * like a 429 or 503, apart from one that would fail the same way again.
+ */
+public class ScriptResponseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final Duration retryAfter;
+
+    /**
+     * @param statusCode HTTP status the script answered with.
+     * @param message description of the problem.
+     * @param retryAfter how long the script asked to wait before trying again, or null if it did not say.
+     */
+    public ScriptResponseException(int statusCode, String message, Duration retryAfter) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @param statusCode HTTP status the script answered with.
+     * @param message description of the problem.
+     * @param cause what went wrong reading the answer.
+     */
+    public ScriptResponseException(int statusCode, String message, Throwable cause) {
+        super(message, cause);
+        this.statusCode = statusCode;
+        this.retryAfter = null;
+    }
+
+    /**
+     * @return HTTP status the script answered with.
+     */
+    public int statusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return how long the script asked to wait before trying again, or null if it did not say.
+     */
+    public Duration retryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * @return true if the script is over its quota, so sending fewer requests should help.
+     */
+    public boolean isThrottled() {
+        return statusCode == 429;
+    }
+
+    /**
+     * @return true if the script failed on its side, which may or may not be from too many requests.
+     */
+    public boolean isServerError() {
+        return statusCode >= 500;
+    }
+
+    /**
+     * @return true if the same request may succeed when sent again later.
+     */
+    public boolean isRetryable() {
+        return isThrottled() || isServerError() || statusCode == 408;
+    }
+}
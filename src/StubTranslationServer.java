@@ -0,0 +1,316 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * ============== StubTranslationServer.java =============
+ *
+ * A stand-in for the translate.gs script, on the JDK's own HTTP server, so a
+ * whole run can be made and timed on one machine with no network and no quota.
+ *
+ * It speaks the same protocol as translate.gs at /exec: a POST of
+ *   {"source":"en","target":"fr","q":["hello","goodbye"]}
+ * is answered with a JSON array of the "translations", and a GET with the
+ * source, target and q parameters with the translation of q alone. A text is
+ * "translated" by moving its last word to the front and escaping ', " and >
+ * the way Google Translate does with HTML, so a text always comes out the same
+ * for the same number of hops, and its length barely changes.
+ *
+ * How the script behaves can be set with Settings: how long it takes to
+ * answer, with a share of much slower answers for a long tail, how many
+ * answers are a 503 or a 429 with Retry-After, how many texts come back with
+ * a tag made up by the translator, and after how many requests the daily
+ * quota runs out. After that, every request is answered like the
+ * real script answers once LanguageApp refuses to translate any more: an
+ * error page instead of a JSON array. The random choices are made from the
+ * seed and the number of the request, so a run can be repeated.
+ *
+ * Run it on its own with
+ *   java StubTranslationServer [--port 8080] [settings]
+ * and point BadTranslation at it with --endpoint http://localhost:8080/exec,
+ * or let LoadTest start it.
+ */
+public class StubTranslationServer {
+
+    private static final String PATH = "/exec";
+    private static final String QUOTA_PAGE = "<html><body>Exception: Service invoked too many times for one day: "
+            + "translate.</body></html>";
+
+    /**
+     * How the stub behaves. Every field has a command line option of the same name, e.g.
+     * --latency-millis for latencyMillis.
+     */
+    public static class Settings {
+        public long latencyMillis = 0;       /* Time taken by every answer */
+        public long jitterMillis = 0;        /* Up to this much more, at random */
+        public double slowRate = 0;          /* Share of answers taking slowMillis instead */
+        public long slowMillis = 0;
+        public double errorRate = 0;         /* Share of answers that are a 503 */
+        public double throttleRate = 0;      /* Share of answers that are a 429 */
+        public double brokenRate = 0;        /* Share of texts translated with a <br> tag in them */
+        public int retryAfterSeconds = 1;    /* Retry-After sent with every 429 */
+        public int quota = Integer.MAX_VALUE; /* Requests answered before the quota runs out */
+        public long seed = 1;
+
+        /**
+         * Takes the options setting these fields out of the arguments.
+         *
+         * @param args command line arguments, left with only the ones that are not settings.
+         * @return the settings, with the defaults for any option not given.
+         * @throws IllegalArgumentException if an option has no value or a value of the wrong type.
+         */
+        public static Settings parse(List<String> args) {
+            Settings settings = new Settings();
+            Iterator<String> options = args.iterator();
+            List<String> rest = new ArrayList<>();
+            while (options.hasNext()) {
+                String option = options.next();
+                if (!settings.isOption(option)) {
+                    rest.add(option);
+                    continue;
+                }
+                if (!options.hasNext()) {
+                    throw new IllegalArgumentException(option + " needs a value");
+                }
+                settings.set(option, options.next());
+            }
+            args.clear();
+            args.addAll(rest);
+            return settings;
+        }
+
+        private boolean isOption(String option) {
+            switch (option) {
+                case "--latency-millis": case "--jitter-millis": case "--slow-rate": case "--slow-millis":
+                case "--error-rate": case "--throttle-rate": case "--broken-rate": case "--retry-after-seconds":
+                case "--quota": case "--seed":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void set(String option, String value) {
+            try {
+                switch (option) {
+                    case "--latency-millis": latencyMillis = Long.parseLong(value); break;
+                    case "--jitter-millis": jitterMillis = Long.parseLong(value); break;
+                    case "--slow-rate": slowRate = Double.parseDouble(value); break;
+                    case "--slow-millis": slowMillis = Long.parseLong(value); break;
+                    case "--error-rate": errorRate = Double.parseDouble(value); break;
+                    case "--throttle-rate": throttleRate = Double.parseDouble(value); break;
+                    case "--broken-rate": brokenRate = Double.parseDouble(value); break;
+                    case "--retry-after-seconds": retryAfterSeconds = Integer.parseInt(value); break;
+                    case "--quota": quota = Integer.parseInt(value); break;
+                    case "--seed": seed = Long.parseLong(value); break;
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException(option + " needs a number, not " + value);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "latency " + latencyMillis + "+" + jitterMillis + " ms, " + slowRate + " slow at " + slowMillis
+                    + " ms, " + errorRate + " errors, " + throttleRate + " throttled, " + brokenRate + " broken, "
+                    + "quota " + quota;
+        }
+    }
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService handlers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "stub-translation-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+    private final AtomicInteger overQuota = new AtomicInteger();
+    private final AtomicInteger texts = new AtomicInteger();
+    private final AtomicInteger broken = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * Creates the server, which does not answer anything until start() is called.
+     *
+     * @param port port to listen on, or 0 for any free port.
+     * @param settings how the stub behaves.
+     * @throws IOException if the port can not be listened on.
+     */
+    public StubTranslationServer(int port, Settings settings) throws IOException {
+        this.settings = settings;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(handlers); /* One thread per request, so slow answers do not hold up the others */
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    /**
+     * @return URL to give BadTranslation with --endpoint.
+     */
+    public String endpoint() {
+        return "http://localhost:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * @return what was answered so far, as one line.
+     */
+    public String summary() {
+        return requests.get() + " requests for " + texts.get() + " texts (" + broken.get() + " broken), "
+                + errors.get() + " answered 503, "
+                + throttled.get() + " answered 429, " + overQuota.get() + " over the quota, at most "
+                + maxInFlight.get() + " at once";
+    }
+
+    /**
+     * "Translates" a text the way the stub does: the last word moves to the front, and
+     * ', " and > are escaped.
+     *
+     * @param text text to translate.
+     * @return the translated text.
+     */
+    public static String fakeTranslate(String text) {
+        String trimmed = text.trim();
+        int lastSpace = trimmed.lastIndexOf(' ');
+        String moved = (lastSpace < 0) ? trimmed
+                : trimmed.substring(lastSpace + 1) + " " + trimmed.substring(0, lastSpace);
+        return moved.replace("'", "&#39;").replace("\"", "&quot;").replace(">", "&gt;");
+    }
+
+    private String breakText(String text) {
+        broken.incrementAndGet();
+        String translated = fakeTranslate(text);
+        int middle = translated.length() / 2;
+        return translated.substring(0, middle) + "<br>" + translated.substring(middle);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int request = requests.incrementAndGet();
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            SplittableRandom random = new SplittableRandom(settings.seed * 1_000_003L + request);
+            sleep(random);
+
+            if (request > settings.quota) {
+                overQuota.incrementAndGet();
+                respond(exchange, 200, "text/html", QUOTA_PAGE);
+                return;
+            }
+            double roll = random.nextDouble();
+            if (roll < settings.errorRate) {
+                errors.incrementAndGet();
+                respond(exchange, 503, "text/plain", "Service unavailable");
+                return;
+            }
+            if (roll < settings.errorRate + settings.throttleRate) {
+                throttled.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(settings.retryAfterSeconds));
+                respond(exchange, 429, "text/plain", "Rate limit exceeded");
+                return;
+            }
+
+            if (exchange.getRequestMethod().equals("POST")) {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                List<String> translated = new ArrayList<>();
+                for (String text : Json.parseStringArray(body.substring(body.indexOf('['),
+                        body.lastIndexOf(']') + 1))) {
+                    translated.add(random.nextDouble() < settings.brokenRate ? breakText(text) : fakeTranslate(text));
+                }
+                texts.addAndGet(translated.size());
+                respond(exchange, 200, "application/json", Json.stringArray(translated));
+            }
+            else {
+                String text = queryParameter(exchange, "q");
+                texts.incrementAndGet();
+                respond(exchange, 200, "application/json", fakeTranslate(text));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            respond(exchange, 400, "text/plain", "Bad request: " + e.getMessage());
+        }
+        finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private void sleep(SplittableRandom random) {
+        long millis = settings.latencyMillis;
+        if (settings.jitterMillis > 0) {
+            millis += random.nextLong(settings.jitterMillis + 1);
+        }
+        if (random.nextDouble() < settings.slowRate) {
+            millis = settings.slowMillis;
+        }
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith(name + "=")) {
+                    return URLDecoder.decode(parameter.substring(name.length() + 1), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return "";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> rest = new ArrayList<>(List.of(args));
+        Settings settings = Settings.parse(rest);
+        int port = 8080;
+        if (rest.size() == 2 && rest.get(0).equals("--port")) {
+            port = Integer.parseInt(rest.get(1));
+        }
+        else if (!rest.isEmpty()) {
+            System.out.println("Unknown arguments " + rest);
+            return;
+        }
+
+        StubTranslationServer server = new StubTranslationServer(port, settings);
+        server.start();
+        System.out.println("Answering at " + server.endpoint() + " (" + settings + ")");
+    }
+}
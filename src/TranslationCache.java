@@ -0,0 +1,204 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * ============== TranslationCache.java =============
+ *
+ * Remembers every single translation hop (langFrom, langTo, text) that has been
+ * done, across runs of the program. Since the free translation quota runs out
+ * partway through a file, a rerun of the same file with the same LANGS would
+ * otherwise pay again for every hop that was already done the day before.
+ *
+ * The cache is kept in an append-only file. Each record is
+ *   [32 byte SHA-256 key][int length][length bytes of UTF-8 translated text]
+ * where the key is the hash of the source language, target language and text.
+ * The whole file is read into memory when the cache is opened, and new
+ * translations are appended to the end of the file as soon as they are made.
+ *
+ * The cache holds at most maxEntries translations. The least recently used
+ * entries are evicted once it is full, and the file is rewritten with only the
+ * live entries once it has grown to twice that size, so it can not grow forever.
+ * The rewritten file replaces the old one in a single step, so a crash while
+ * compacting never loses the translations already paid for.
+ */
+public class TranslationCache implements Closeable {
+
+    private static final int RECORD_HEADER_BYTES = Hashes.SHA256_LENGTH + 4; /* Key and length */
+
+    private final File file;
+    private final int maxEntries;
+    private final LinkedHashMap<String, String> entries;
+    private DataOutputStream log;
+    private int recordsInLog = 0;
+
+    /**
+     * Opens the cache stored in the given file, creating the file and its directory if they do
+     * not exist yet.
+     *
+     * @param fileName name of the cache file.
+     * @param maxEntries maximum number of translations kept in the cache.
+     * @throws IOException upon an issue reading or creating the cache file.
+     */
+    public TranslationCache(String fileName, int maxEntries) throws IOException {
+        this.file = new File(fileName);
+        this.maxEntries = maxEntries;
+
+        /* Access ordered, so the eldest entry is always the least recently used one */
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > TranslationCache.this.maxEntries;
+            }
+        };
+
+        long validLength = load();
+
+        /* Cut off a record that was only half written, e.g. if the program was killed mid-write */
+        if (file.exists() && validLength < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+        log = openLog();
+        if (recordsInLog > 2 * maxEntries) {
+            compact();
+        }
+    }
+
+    /**
+     * Looks up an earlier translation.
+     *
+     * @param langFrom language the text is translated from.
+     * @param langTo language the text is translated to.
+     * @param text text to translate.
+     * @return the translated text, or null if this hop was never done before.
+     */
+    public synchronized String get(String langFrom, String langTo, String text) {
+        return entries.get(key(langFrom, langTo, text));
+    }
+
+    /**
+     * Stores a translation in the cache and appends it to the cache file.
+     *
+     * @param langFrom language the text was translated from.
+     * @param langTo language the text was translated to.
+     * @param text text that was translated.
+     * @param translated result of the translation.
+     * @throws IOException upon an issue writing to the cache file.
+     */
+    public synchronized void put(String langFrom, String langTo, String text, String translated)
+        throws IOException {
+        String key = key(langFrom, langTo, text);
+        if (translated.equals(entries.put(key, translated))) {
+            return; /* Already stored, no need to write it again */
+        }
+
+        writeRecord(log, key, translated);
+        log.flush();
+        recordsInLog++;
+
+        if (recordsInLog > 2 * maxEntries) {
+            compact();
+        }
+    }
+
+    /**
+     * @return number of translations currently held in the cache.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Reads every complete record of the cache file into memory.
+     *
+     * @return length in bytes of the part of the file holding complete records.
+     */
+    private long load() throws IOException {
+        long validLength = 0;
+        if (!file.exists()) {
+            return validLength;
+        }
+        long fileLength = file.length();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] keyBytes = new byte[Hashes.SHA256_LENGTH];
+            while (true) {
+                String translated;
+                int length;
+                try {
+                    in.readFully(keyBytes);
+                    length = in.readInt();
+
+                    /* A length running past the end of the file is a record that was cut off */
+                    if (length < 0 || validLength + RECORD_HEADER_BYTES + length > fileLength) break;
+                    byte[] textBytes = new byte[length];
+                    in.readFully(textBytes);
+                    translated = new String(textBytes, StandardCharsets.UTF_8);
+                }
+                catch (EOFException e) {
+                    break; /* End of file, or a record that was cut off */
+                }
+
+                entries.put(Hashes.toHex(keyBytes), translated);
+                recordsInLog++;
+                validLength += RECORD_HEADER_BYTES + length;
+            }
+        }
+        return validLength;
+    }
+
+    /**
+     * Rewrites the cache file so it only contains the entries still held in memory.
+     */
+    private void compact() throws IOException {
+        log.close();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+        }
+
+        /* Replaced in one step, so a crash leaves either the old cache or the new one */
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        recordsInLog = entries.size();
+        log = openLog();
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, String translated) throws IOException {
+        byte[] textBytes = translated.getBytes(StandardCharsets.UTF_8);
+        out.write(Hashes.fromHex(key));
+        out.writeInt(textBytes.length);
+        out.write(textBytes);
+    }
+
+    /**
+     * Hashes a translation hop into the key used by the cache.
+     */
+    private static String key(String langFrom, String langTo, String text) {
+        return Hashes.toHex(Hashes.sha256(langFrom, langTo, text));
+    }
+}
@@ -0,0 +1,547 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntSupplier;
+
+/*
+ * ============== TranslationEngine.java =============
+ *
+ * Sends the chunks of a formatted file through the LANGS chain concurrently.
+ * Every chunk is independent of the others, so instead of waiting for one
+ * chunk to finish all of its translation hops before starting the next,
+ * neighbouring chunks are grouped into batches of up to maxCharsPerBatch
+ * characters, and up to maxConcurrentBatches batches are translated at the
+ * same time. A batch goes through each hop together, so it usually only costs
+ * one request per hop no matter how many chunks it holds. maxCharsPerBatch is
+ * asked for again for every batch, so it can follow the expansion of the text
+ * through the chain as it is learned during the run.
+ *
+ * The results are always handed back in the original chunk order, so the
+ * translated file lines up with the formatted file exactly like before.
+ *
+ * Chunks already recorded in the ChunkJournal by an earlier run are handed
+ * back right away without any requests, and every chunk that makes it through
+ * all the hops is recorded in the journal as soon as it is done.
+ *
+ * A chunk is not sent as it is. A MessageParser splits it into the dialogue
+ * of its messages and the markup around it, identifiers, <NUL> and control
+ * tags, and only the dialogue segments are sent. The markup never goes through
+ * the translator, so it takes up none of the characters of a request and comes
+ * back exactly as it was.
+ *
+ * The game also repeats a lot of its text, like "Yes" and "No" prompts and
+ * system messages shared between the stg files, so each segment is looked up
+ * by the hash of its text. A segment already sent by any file during this run
+ * reuses that translation, and only segments never seen before are put in a
+ * batch. Once all the segments of a chunk are back, they are put back between
+ * the markup in their original places.
+ *
+ * When multipleTranslate() makes several variants, every segment comes back
+ * once per variant, and each chunk is put back together once per variant.
+ *
+ * Every chunk put back together, and every chunk taken from the journal, is
+ * checked by the ChunkValidator. A journaled chunk that fails is translated
+ * again like any other. A new chunk that fails only has its broken segments,
+ * those that came back holding tags or null characters of their own, sent
+ * again: each in a request of its own, without the cache, up to
+ * maxRepairAttempts times. A segment is only repaired once for all the chunks
+ * holding it, unless a hop of its repair fails, in which case the next chunk
+ * holding it tries again. A chunk that is still broken after that is left in
+ * English, and kept out of the journal so the next run tries it again.
+ *
+ * Each file also has a TranslationManifest of the segments finished by its last
+ * run. A segment found there is not sent at all, so after changing a few
+ * messages only their segments are translated again, and the translations of
+ * the rest are put back around them. Every segment of a chunk that is finished
+ * is recorded in the manifest for the next run.
+ */
+public class TranslationEngine {
+
+    private static final String VARIANT_SEPARATOR = "\0"; /* Between the variants of a chunk in the journal */
+
+    private final ExecutorService pool;
+    private final IntSupplier maxCharsPerBatch;
+    private final int charsPerSegment;
+    private final int maxRepairAttempts;
+
+    /* Translations of every segment sent so far in this run, one per variant, by the hash of the segment */
+    private final Map<String, CompletableFuture<List<String>>> segments = new ConcurrentHashMap<>();
+
+    /* Translations of the segments sent again after coming back broken, by the hash of the segment */
+    private final Map<String, CompletableFuture<List<String>>> repairs = new ConcurrentHashMap<>();
+
+    /**
+     * A chunk after going through the engine.
+     */
+    public static class ChunkResult {
+        /* The translated chunk for every variant, or the original chunk if translating it failed */
+        public final List<String> texts;
+        /* Whether the chunk made it through all the translation hops */
+        public final boolean translated;
+
+        ChunkResult(List<String> texts, boolean translated) {
+            this.texts = texts;
+            this.translated = translated;
+        }
+    }
+
+    /**
+     * @param maxConcurrentBatches maximum number of batches being translated at once.
+     * @param maxCharsPerBatch gives the maximum number of characters in the segments of one batch.
+     * @param charsPerSegment characters each segment adds to a request on top of its text,
+     *                        e.g. the separator put between the texts of a request.
+     * @param maxRepairAttempts most times a segment whose translation came back broken is sent again.
+     */
+    public TranslationEngine(int maxConcurrentBatches, IntSupplier maxCharsPerBatch, int charsPerSegment,
+                             int maxRepairAttempts) {
+        if (maxConcurrentBatches < 1) {
+            throw new IllegalArgumentException("maxConcurrentBatches must be at least 1");
+        }
+        this.maxCharsPerBatch = maxCharsPerBatch;
+        this.charsPerSegment = charsPerSegment;
+        this.maxRepairAttempts = maxRepairAttempts;
+        pool = Executors.newFixedThreadPool(maxConcurrentBatches, runnable -> {
+            Thread thread = new Thread(runnable, "translation-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gathers the segments of chunks into batches as they come in, for callers
+     * that do not have all the chunks of a file at once. Each chunk's future is
+     * handed to the output in the same order the chunks were added, but only
+     * once every batch holding one of its segments has been queued, so whoever
+     * waits on a future handed out never waits on a batch that was not started.
+     *
+     * A segment only reuses the translation of another Batcher's segment once
+     * that segment's batch was queued, for the same reason.
+     */
+    public class Batcher {
+        private final ChunkJournal journal;
+        private final TranslationManifest manifest;
+        private final FutureConsumer output;
+        private final MessageParser parser = new MessageParser();
+        private final List<CompletableFuture<ChunkResult>> pending = new ArrayList<>();
+        private Map<String, CompletableFuture<List<String>>> batch = new LinkedHashMap<>(); /* By segment hash */
+        private List<String> batchSegments = new ArrayList<>();
+        private int batchChars = 0;
+
+        private Batcher(ChunkJournal journal, TranslationManifest manifest, FutureConsumer output) {
+            this.journal = journal;
+            this.manifest = manifest;
+            this.output = output;
+        }
+
+        /**
+         * Adds the next chunk of the file. Chunks already in the journal are not translated again.
+         *
+         * @param index position of the chunk within the file.
+         * @param chunk formatted text of the chunk.
+         * @throws InterruptedException if interrupted while the output was blocked.
+         */
+        public void add(int index, String chunk) throws InterruptedException {
+            CompletableFuture<ChunkResult> slot;
+
+            /* Parsed even when journaled, so the parser knows where the next chunk starts */
+            List<MessageParser.Span> spans = parser.parse(chunk);
+
+            String finished = journal.get(index, chunk);
+            List<String> finishedVariants = (finished != null)
+                    ? Arrays.asList(finished.split(VARIANT_SEPARATOR, -1)) : null;
+            /* A journal from an older run can hold chunks with broken tags, those are translated again */
+            if (finishedVariants != null && finishedVariants.size() == BadTranslation.variantCount()
+                    && validate(chunk, finishedVariants) == null) {
+                /* Keeps the segments the manifest has of the chunk for the next run */
+                for (MessageParser.Span span : spans) {
+                    if (span.dialogue) manifest.keep(span.text);
+                }
+                slot = CompletableFuture.completedFuture(new ChunkResult(finishedVariants, true));
+            }
+            else {
+                /* Markup is not translated, and has no future */
+                List<CompletableFuture<List<String>>> translations = new ArrayList<>(spans.size());
+                for (MessageParser.Span span : spans) {
+                    translations.add(span.dialogue ? segment(span.text) : null);
+                }
+                slot = CompletableFuture.allOf(translations.stream().filter(Objects::nonNull)
+                                .toArray(CompletableFuture<?>[]::new))
+                        .thenCompose(done -> finishChunk(index, chunk, spans, translations, journal, manifest));
+            }
+
+            if (batch.isEmpty()) {
+                output.accept(slot); /* Nothing before it is still waiting to be queued */
+            }
+            else {
+                pending.add(slot);
+            }
+        }
+
+        /**
+         * Starts the batch gathered so far, and hands out the futures of all chunks added so far.
+         * Must be called after the last chunk is added.
+         *
+         * @throws InterruptedException if interrupted while the output was blocked.
+         */
+        public void flush() throws InterruptedException {
+            if (!batch.isEmpty()) {
+                List<String> texts = new ArrayList<>(batch.size());
+                List<String> hashes = new ArrayList<>(batch.size());
+                List<CompletableFuture<List<String>>> slots = new ArrayList<>(batch.size());
+                int i = 0;
+                for (Map.Entry<String, CompletableFuture<List<String>>> segment : batch.entrySet()) {
+                    /* Another file may have queued the same segment while this batch was gathered */
+                    CompletableFuture<List<String>> sent = segments.putIfAbsent(segment.getKey(), segment.getValue());
+                    if (sent != null) {
+                        sent.whenComplete((translated, error) -> segment.getValue().complete(translated));
+                    }
+                    else {
+                        texts.add(batchSegments.get(i));
+                        hashes.add(segment.getKey());
+                        slots.add(segment.getValue());
+                    }
+                    i++;
+                }
+                BadTranslation.metrics.segments(texts.size(), batch.size() - texts.size());
+
+                CompletableFuture<List<List<String>>> sending = texts.isEmpty()
+                        ? CompletableFuture.completedFuture(List.of()) : submitBatch(texts);
+                sending.whenComplete((results, error) -> {
+                    for (int j = 0; j < slots.size(); j++) {
+                        /*
+                         * A failed segment is forgotten before its chunks hear of it, so a chunk
+                         * holding it that comes after them tries it again
+                         */
+                        if (error != null || results.get(j) == null) {
+                            segments.remove(hashes.get(j), slots.get(j));
+                        }
+                        if (error != null) {
+                            slots.get(j).completeExceptionally(error);
+                        }
+                        else {
+                            slots.get(j).complete(results.get(j));
+                        }
+                    }
+                });
+                batch = new LinkedHashMap<>();
+                batchSegments = new ArrayList<>();
+                batchChars = 0;
+            }
+
+            for (CompletableFuture<ChunkResult> slot : pending) {
+                output.accept(slot);
+            }
+            pending.clear();
+        }
+
+        /**
+         * @return future of the translation of one segment, shared with every other place it occurs.
+         */
+        private CompletableFuture<List<String>> segment(String text) throws InterruptedException {
+            /* Unchanged since the last run, no need to send it */
+            List<String> unchanged = manifest.get(text);
+            if (unchanged != null) {
+                return CompletableFuture.completedFuture(unchanged);
+            }
+
+            String hash = Hashes.toHex(Hashes.sha256(text));
+
+            CompletableFuture<List<String>> translation = segments.get(hash);
+            if (translation == null) {
+                translation = batch.get(hash);
+            }
+            if (translation != null) {
+                BadTranslation.metrics.segments(0, 1);
+                return translation;
+            }
+
+            /* Start the batch gathered so far if this segment would not fit in it */
+            int chars = text.length() + charsPerSegment;
+            if (!batch.isEmpty() && batchChars + chars > maxCharsPerBatch.getAsInt()) {
+                flush();
+            }
+
+            translation = new CompletableFuture<>();
+            batch.put(hash, translation);
+            batchSegments.add(text);
+            batchChars += chars;
+            return translation;
+        }
+    }
+
+    /**
+     * Receives the futures handed out by a Batcher. Allowed to block, e.g. on a full queue.
+     */
+    public interface FutureConsumer {
+        void accept(Future<ChunkResult> result) throws InterruptedException;
+    }
+
+    /**
+     * Creates a Batcher for the chunks of one file.
+     *
+     * @param journal journal of the file's chunks finished so far.
+     * @param manifest manifest of the file's segments translated by the last run, and this one.
+     * @param output receives the future of each chunk, in order.
+     * @return the new batcher.
+     */
+    public Batcher newBatcher(ChunkJournal journal, TranslationManifest manifest, FutureConsumer output) {
+        return new Batcher(journal, manifest, output);
+    }
+
+    /**
+     * Waits for a translated chunk handed out by a Batcher.
+     *
+     * @param result future of the chunk to wait for.
+     * @return the translated chunk.
+     * @throws IOException if the chunk could not be recorded in the journal or the wait was interrupted.
+     */
+    public static ChunkResult await(Future<ChunkResult> result) throws IOException {
+        try {
+            return result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a chunk");
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Chunk translation failed", e.getCause());
+        }
+    }
+
+    /**
+     * Stops the worker threads once all queued chunks are finished.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Queues one batch of segments on the worker threads.
+     */
+    private CompletableFuture<List<List<String>>> submitBatch(List<String> texts) {
+        return CompletableFuture.supplyAsync(() -> translateBatch(texts), pool);
+    }
+
+    /**
+     * Sends one batch of segments through all the translation hops.
+     *
+     * @return for every segment, its translation in every variant. If any hop fails, null is
+     * handed back for every segment instead, so the chunks holding them are left in English.
+     */
+    private static List<List<String>> translateBatch(List<String> texts) {
+        List<List<String>> variants;
+        try {
+            variants = BadTranslation.multipleTranslate(texts);
+        }
+        catch (IOException e) {
+            System.out.println("=========ERROR: " + e.getMessage());
+            System.out.println("for the text : " + String.join("", texts));
+            return Collections.nCopies(texts.size(), null);
+        }
+
+        List<List<String>> bySegment = new ArrayList<>(texts.size());
+        for (int j = 0; j < texts.size(); j++) {
+            List<String> translations = new ArrayList<>(variants.size());
+            for (List<String> variant : variants) {
+                translations.add(variant.get(j));
+            }
+            bySegment.add(translations);
+        }
+        return bySegment;
+    }
+
+    /**
+     * Puts a chunk back together from its translated segments and checks it. If it is broken, its
+     * broken segments are translated again before it is put back together and checked once more.
+     * A chunk that is fine is recorded in the journal, and its segments in the manifest. If any
+     * segment could not be translated, or the chunk is still broken, the original chunk is handed
+     * back instead, and nothing is recorded so the chunk is tried again on the next run.
+     */
+    private CompletableFuture<ChunkResult> finishChunk(int index, String chunk, List<MessageParser.Span> spans,
+                                                       List<CompletableFuture<List<String>>> translations,
+                                                       ChunkJournal journal, TranslationManifest manifest) {
+        List<String> texts = joinSegments(chunk, spans, translations);
+        if (texts == null) {
+            return CompletableFuture.completedFuture(untranslated(chunk));
+        }
+        if (validate(chunk, texts) == null) {
+            remember(spans, translations, manifest);
+            return CompletableFuture.completedFuture(record(index, chunk, texts, journal));
+        }
+
+        /* Only the segments that came back with markup of their own are sent again */
+        List<CompletableFuture<List<String>>> repaired = new ArrayList<>(translations);
+        for (int j = 0; j < spans.size(); j++) {
+            if (translations.get(j) != null && !isClean(translations.get(j).join())) {
+                repaired.set(j, repair(spans.get(j).text));
+            }
+        }
+
+        return CompletableFuture.allOf(repaired.stream().filter(Objects::nonNull)
+                        .toArray(CompletableFuture<?>[]::new))
+                .thenApply(done -> {
+                    List<String> fixed = joinSegments(chunk, spans, repaired);
+                    String problem = (fixed != null) ? validate(chunk, fixed) : "could not be translated again";
+                    BadTranslation.metrics.invalidChunk(problem == null);
+                    if (problem != null) {
+                        System.out.println("Chunk " + index + " left untranslated, its translation is broken: "
+                                + problem);
+                        return untranslated(chunk);
+                    }
+                    remember(spans, repaired, manifest);
+                    return record(index, chunk, fixed, journal);
+                });
+    }
+
+    /**
+     * @return future of the repaired translation of one segment, shared with every chunk holding it.
+     */
+    private CompletableFuture<List<String>> repair(String text) {
+        String hash = Hashes.toHex(Hashes.sha256(text));
+        CompletableFuture<List<String>> repaired = new CompletableFuture<>();
+        CompletableFuture<List<String>> started = repairs.putIfAbsent(hash, repaired);
+        if (started != null) {
+            return started;
+        }
+        segments.put(hash, repaired); /* Chunks holding the segment from now on get the repaired translation */
+
+        CompletableFuture.supplyAsync(() -> retranslate(text), pool).whenComplete((translated, error) -> {
+            /* A failed repair is forgotten first, so a later chunk holding the segment tries it again */
+            if (translated == null) {
+                repairs.remove(hash, repaired);
+                segments.remove(hash, repaired);
+            }
+            if (error != null) {
+                repaired.completeExceptionally(error);
+            }
+            else {
+                repaired.complete(translated);
+            }
+        });
+        return repaired;
+    }
+
+    /**
+     * Sends one segment through the translation hops again, until its translation comes back clean
+     * or maxRepairAttempts is reached.
+     *
+     * @return the last translation of the segment in every variant, or null if a hop failed.
+     */
+    private List<String> retranslate(String text) {
+        List<String> translations = null;
+        for (int attempt = 1; attempt <= maxRepairAttempts; attempt++) {
+            List<List<String>> variants;
+            try {
+                variants = BadTranslation.retranslate(List.of(text));
+            }
+            catch (IOException e) {
+                System.out.println("=========ERROR: " + e.getMessage());
+                System.out.println("for the text : " + text);
+                return null;
+            }
+
+            translations = new ArrayList<>(variants.size());
+            for (List<String> variant : variants) {
+                translations.add(variant.get(0));
+            }
+            if (isClean(translations)) {
+                break;
+            }
+        }
+        return translations;
+    }
+
+    /**
+     * @return the first problem ChunkValidator finds in the variants of a chunk, or null if there is none.
+     */
+    private static String validate(String chunk, List<String> texts) {
+        for (String text : texts) {
+            String problem = ChunkValidator.check(chunk, text);
+            if (problem != null) {
+                return problem;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isClean(List<String> translations) {
+        for (String translation : translations) {
+            if (!ChunkValidator.isClean(translation)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts a chunk back together from its markup and translated segments, once for every variant.
+     *
+     * @return the chunk in every variant, or null if any segment could not be translated.
+     */
+    private static List<String> joinSegments(String chunk, List<MessageParser.Span> spans,
+                                             List<CompletableFuture<List<String>>> translations) {
+        int variants = BadTranslation.variantCount();
+        List<StringBuilder> translated = new ArrayList<>(variants);
+        for (int v = 0; v < variants; v++) {
+            translated.add(new StringBuilder(chunk.length()));
+        }
+
+        for (int j = 0; j < spans.size(); j++) {
+            List<String> segment = (translations.get(j) != null) ? translations.get(j).join() : null;
+            if (translations.get(j) != null && segment == null) {
+                return null;
+            }
+            for (int v = 0; v < variants; v++) {
+                translated.get(v).append(segment != null ? segment.get(v) : spans.get(j).text);
+            }
+        }
+
+        List<String> texts = new ArrayList<>(variants);
+        for (StringBuilder text : translated) {
+            texts.add(text.toString());
+        }
+        return texts;
+    }
+
+    /**
+     * Records a finished chunk in the journal.
+     */
+    private static ChunkResult record(int index, String chunk, List<String> texts, ChunkJournal journal) {
+        try {
+            journal.record(index, chunk, String.join(VARIANT_SEPARATOR, texts));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new ChunkResult(texts, true);
+    }
+
+    /**
+     * Records the translation of every segment of a finished chunk in the manifest.
+     */
+    private static void remember(List<MessageParser.Span> spans, List<CompletableFuture<List<String>>> translations,
+                                 TranslationManifest manifest) {
+        for (int j = 0; j < spans.size(); j++) {
+            if (translations.get(j) != null) {
+                manifest.put(spans.get(j).text, translations.get(j).join());
+            }
+        }
+    }
+
+    private static ChunkResult untranslated(String chunk) {
+        return new ChunkResult(Collections.nCopies(BadTranslation.variantCount(), chunk), false);
+    }
+}
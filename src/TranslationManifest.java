@@ -0,0 +1,188 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * ============== TranslationManifest.java =============
+ *
+ * Remembers the final translation of every message of a file from the last
+ * run that finished it, so that after a change to the game text only the
+ * messages that were added or changed are translated again.
+ *
+ * The ChunkJournal can not help there: one changed message changes the length
+ * of its chunk, so every chunk after it starts in a different place and none
+ * of them match the journal any more. The manifest is kept by message instead,
+ * or more exactly by the dialogue segments MessageParser finds in a message,
+ * which do not move when the text around them changes. A segment found in the
+ * manifest gets its translation from it straight away, without a request or
+ * even a trip through the cache, and only the other segments go through the
+ * engine. Their translations are then spliced back in between the unchanged
+ * ones as usual.
+ *
+ * The manifest file holds one record per segment,
+ *   [32 byte SHA-256 of the chain and segment][int length][UTF-8 translations]
+ * with the translation of every variant joined by null characters. It is
+ * rewritten as a whole at the end of every run of the file, with only the
+ * segments of that run, so messages taken out of the game drop out of it.
+ */
+public class TranslationManifest {
+
+    private static final String VARIANT_SEPARATOR = "\0";
+
+    private final File file;
+    private final String chain;
+    private final int variants;
+    private final Map<String, String> previous = new HashMap<>();               /* Read from the file */
+    private final Map<String, String> current = new ConcurrentHashMap<>();     /* Written to the file */
+    private final Set<String> unchanged = ConcurrentHashMap.newKeySet();
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Reads the manifest of the last run, if there is one.
+     *
+     * @param fileName name of the manifest file.
+     * @param chain the languages the segments are translated through, e.g. "en af pt ... en".
+     * @param variants number of variants every segment is translated into.
+     * @throws IOException upon an issue reading the manifest file.
+     */
+    public TranslationManifest(String fileName, String chain, int variants) throws IOException {
+        this.file = new File(fileName);
+        this.chain = chain;
+        this.variants = variants;
+        load();
+    }
+
+    /**
+     * Looks up the translation of a segment made in the last run, and keeps it for the next one.
+     *
+     * @param segment text of a dialogue segment.
+     * @return the translation of the segment in every variant, or null if it is new or changed.
+     */
+    public List<String> get(String segment) {
+        String key = key(segment);
+        String translations = previous.get(key);
+        if (translations == null) {
+            changed.add(key);
+            return null;
+        }
+
+        unchanged.add(key);
+        current.put(key, translations);
+        return Arrays.asList(translations.split(VARIANT_SEPARATOR, -1));
+    }
+
+    /**
+     * Keeps the translation of a segment made in the last run for the next one, if there is one,
+     * without counting the segment as unchanged or changed. Used for segments that are not
+     * translated at all, e.g. those of a chunk taken from the journal.
+     *
+     * @param segment text of a dialogue segment.
+     */
+    public void keep(String segment) {
+        String key = key(segment);
+        String translations = previous.get(key);
+        if (translations != null) {
+            current.put(key, translations);
+        }
+    }
+
+    /**
+     * Records the translation of a segment, to be written out by save().
+     *
+     * @param segment text of a dialogue segment.
+     * @param translations translation of the segment in every variant.
+     */
+    public void put(String segment, List<String> translations) {
+        current.put(key(segment), String.join(VARIANT_SEPARATOR, translations));
+    }
+
+    /**
+     * Replaces the manifest file with the segments of this run.
+     *
+     * @throws IOException upon an issue writing the manifest file.
+     */
+    public void save() throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            for (Map.Entry<String, String> entry : current.entrySet()) {
+                byte[] textBytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                out.write(Hashes.fromHex(entry.getKey()));
+                out.writeInt(textBytes.length);
+                out.write(textBytes);
+            }
+        }
+
+        /* Replaced in one step, so a crash leaves either the old manifest or the new one */
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return number of different segments get() found unchanged since the last run.
+     */
+    public int unchanged() {
+        return unchanged.size();
+    }
+
+    /**
+     * @return how the file changed since the last run, e.g. "120 segments unchanged, 3 new or
+     * changed and 1 gone since the last run".
+     */
+    public String summary() {
+        int gone = 0;
+        for (String key : previous.keySet()) {
+            if (!current.containsKey(key)) {
+                gone++;
+            }
+        }
+        return unchanged.size() + " segments unchanged, " + changed.size() + " new or changed and " + gone
+                + " gone since the last run";
+    }
+
+    /**
+     * Reads every complete record of the manifest file into memory. A record cut off at the end,
+     * or holding the wrong number of variants, is left out and its segment translated again.
+     */
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] keyBytes = new byte[Hashes.SHA256_LENGTH];
+            while (true) {
+                String translations;
+                try {
+                    in.readFully(keyBytes);
+                    int length = in.readInt();
+                    if (length < 0) break;
+                    byte[] textBytes = new byte[length];
+                    in.readFully(textBytes);
+                    translations = new String(textBytes, StandardCharsets.UTF_8);
+                }
+                catch (EOFException e) {
+                    break; /* End of file, or a record that was cut off */
+                }
+
+                if (translations.split(VARIANT_SEPARATOR, -1).length == variants) {
+                    previous.put(Hashes.toHex(keyBytes), translations);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes a segment into the key used by the manifest, so a different chain never matches.
+     */
+    private String key(String segment) {
+        return Hashes.toHex(Hashes.sha256(chain, segment));
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/*
+ * ============== TranslationPipeline.java =============
+ *
+ * Translates one game text file from start to finish without any temporary
+ * files. The file streams through these stages:
+ *
+ *   format -> chunk -> translate -> new lines -> unformat
+ *
+ * The producer thread reads the original file, formats it line by line and
+ * gathers the lines into chunks, which are handed to the shared engine in
+ * batches. The future of every chunk goes into a bounded queue, and the writer
+ * thread takes them out in order, adds the new lines, unformats the result and
+ * writes it straight to the final translation file, one file per variant.
+ * BadTranslation.FORMATTER is not used here: it formats a whole file before
+ * handing out its first line, so the first request would wait for the whole
+ * file and all of it would be held in memory.
+ *
+ * When the queue is full, the producer waits for the writer to catch up, so
+ * only a fixed number of chunks are ever held in memory no matter how big the
+ * file is. The formatted and translated text can still be written to disk for
+ * debugging by giving their file names.
+ *
+ * Only the messages changed since the last run of the file are translated,
+ * the rest are taken from its TranslationManifest, which is saved again once
+ * the whole file has been written.
+ *
+ * The original file is read through a GameTextReader and the translation is
+ * written through a GameTextWriter, both using BadTranslation.GAME_CHARSET.
+ */
+public class TranslationPipeline {
+
+    /* Put in the queue after the last chunk */
+    private static final Future<TranslationEngine.ChunkResult> END = CompletableFuture.completedFuture(null);
+
+    private final String inFileName;
+    private final List<String> outFileNames;
+    private final ChunkJournal journal;
+    private final TranslationManifest manifest;
+    private final TranslationEngine engine;
+    private final String formattedFileName;  /* null unless the stages are kept for debugging */
+    private final List<String> translatedFileNames; /* null unless the stages are kept for debugging */
+    private final BlockingQueue<Future<TranslationEngine.ChunkResult>> queue;
+
+    private Thread producer;
+    private Thread writer;
+    private volatile Throwable failure;
+    private int chunkCount = 0;
+    private int untranslatedChunks = 0;
+
+    /**
+     * @param inFileName original game text file.
+     * @param outFileNames files to write the final translation to, one for every variant.
+     * @param journal journal of the chunks finished so far, deleted once all chunks are translated.
+     * @param manifest translations of the segments of the last run, saved once the file is written.
+     * @param engine engine translating the chunks, may be shared with other pipelines.
+     * @param maxChunksInFlight most chunks held between the producer and the writer at once.
+     * @param formattedFileName file to keep the formatted text in, or null for none.
+     * @param translatedFileNames files to keep the translated text of every variant in before
+     *                            unformatting, or null for none.
+     */
+    public TranslationPipeline(String inFileName, List<String> outFileNames, ChunkJournal journal,
+                               TranslationManifest manifest, TranslationEngine engine, int maxChunksInFlight,
+                               String formattedFileName, List<String> translatedFileNames) {
+        this.inFileName = inFileName;
+        this.outFileNames = outFileNames;
+        this.journal = journal;
+        this.manifest = manifest;
+        this.engine = engine;
+        this.formattedFileName = formattedFileName;
+        this.translatedFileNames = translatedFileNames;
+        this.queue = new ArrayBlockingQueue<>(maxChunksInFlight);
+    }
+
+    /**
+     * Starts the producer and writer threads.
+     */
+    public void start() {
+        producer = new Thread(this::runProducer, "pipeline-producer " + inFileName);
+        writer = new Thread(this::runWriter, "pipeline-writer " + inFileName);
+        producer.start();
+        writer.start();
+    }
+
+    /**
+     * Waits for the whole file to be written.
+     *
+     * @return number of chunks that could not be translated and were left in English.
+     * @throws IOException if reading or writing the file failed.
+     */
+    public int await() throws IOException {
+        try {
+            producer.join();
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + inFileName);
+        }
+
+        if (failure != null) {
+            journal.close();
+            if (failure instanceof IOException) throw (IOException) failure;
+            throw new IOException("Translating " + inFileName + " failed", failure);
+        }
+
+        manifest.save();
+        BadTranslation.metrics.unchangedSegments(manifest.unchanged());
+
+        /* Once every chunk made it through, there is nothing left to resume */
+        if (untranslatedChunks == 0) {
+            journal.delete();
+        }
+        else {
+            journal.close();
+        }
+        return untranslatedChunks;
+    }
+
+    /**
+     * @return number of chunks in the file, once await() has returned.
+     */
+    public int chunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return how the file changed since its last run, once await() has returned.
+     */
+    public String changes() {
+        return manifest.summary();
+    }
+
+    /**
+     * Formats the original file, gathers it into chunks and queues them on the engine.
+     */
+    private void runProducer() {
+        try (GameTextReader scanner = new GameTextReader(inFileName, BadTranslation.GAME_CHARSET);
+             GameTextWriter formattedWriter = (formattedFileName != null)
+                     ? new GameTextWriter(formattedFileName, BadTranslation.GAME_CHARSET) : null) {
+
+            TranslationEngine.Batcher batcher = engine.newBatcher(journal, manifest, queue::put);
+            StringBuilder chunk = new StringBuilder();
+
+            BadTranslation.ChunkSink chunker = new BadTranslation.ChunkSink() {
+                @Override
+                public void line(CharSequence formattedLine) throws IOException {
+                    if (formattedWriter != null) {
+                        formattedWriter.append(formattedLine).append("\n");
+                    }
+
+                    /* An empty line ends a chunk as well, just like in readChunks() */
+                    if (formattedLine.length() == 0) {
+                        endOfChunk();
+                    }
+                    else {
+                        chunk.append(formattedLine);
+                    }
+                }
+
+                @Override
+                public void endOfChunk() throws IOException {
+                    if (formattedWriter != null) {
+                        formattedWriter.append("\n");
+                    }
+
+                    /* Empty chunks come out empty, no need to translate them */
+                    if (chunk.length() > 0) {
+                        try {
+                            batcher.add(chunkCount++, chunk.toString());
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while queueing a chunk");
+                        }
+                        chunk.setLength(0);
+                    }
+                }
+            };
+            BadTranslation.formatIntoChunks(scanner, inFileName, chunker);
+
+            if (chunk.length() > 0) {
+                batcher.add(chunkCount++, chunk.toString());
+            }
+            batcher.flush();
+        }
+        catch (Throwable e) {
+            fail(e);
+        }
+        finally {
+            /* Always let the writer know there is nothing more coming */
+            try {
+                queue.put(END);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Takes the translated chunks in order, adds new lines, unformats them and writes them out.
+     */
+    private void runWriter() {
+        List<GameTextWriter> outs = new ArrayList<>();
+        List<GameTextWriter> translatedWriters = new ArrayList<>();
+        try {
+            for (String outFileName : outFileNames) {
+                outs.add(new GameTextWriter(outFileName, BadTranslation.GAME_CHARSET));
+            }
+            if (translatedFileNames != null) {
+                for (String translatedFileName : translatedFileNames) {
+                    translatedWriters.add(new GameTextWriter(translatedFileName, BadTranslation.GAME_CHARSET));
+                }
+            }
+
+            /* Reused for every chunk and line, so wrapping and unformatting do not allocate */
+            StringBuilder wrapped = new StringBuilder();
+            StringBuilder unformatted = new StringBuilder();
+            Metrics metrics = BadTranslation.metrics;
+            long newLinesNanos = 0;
+            long newLinesChars = 0;
+            long unformatNanos = 0;
+            long unformatChars = 0;
+
+            Future<TranslationEngine.ChunkResult> result;
+            while ((result = queue.take()) != END) {
+                TranslationEngine.ChunkResult chunk = TranslationEngine.await(result);
+                if (!chunk.translated) untranslatedChunks++;
+
+                int chunkChars = 0;
+                for (int variant = 0; variant < outs.size(); variant++) {
+                    String text = chunk.texts.get(variant);
+
+                    /*
+                     * The entire text is now in one line. Separate the text into more than one line, using a
+                     * limit per line
+                     */
+                    long start = System.nanoTime();
+                    wrapped.setLength(0);
+                    BadTranslation.LINE_WRAPPER.wrap(text, wrapped);
+                    newLinesNanos += System.nanoTime() - start;
+                    newLinesChars += text.length();
+                    if (!translatedWriters.isEmpty()) {
+                        translatedWriters.get(variant).append(wrapped);
+                    }
+
+                    /* Unformat every line the same way unformat() does for the translated file */
+                    int lineStart = 0;
+                    while (lineStart < wrapped.length()) {
+                        int lineEnd = wrapped.indexOf("\n", lineStart);
+                        if (lineEnd < 0) lineEnd = wrapped.length();
+
+                        if (lineEnd > lineStart) {
+                            start = System.nanoTime();
+                            unformatted.setLength(0);
+                            GameTextLexer.unformat(wrapped, lineStart, lineEnd, unformatted);
+                            unformatNanos += System.nanoTime() - start;
+                            unformatChars += lineEnd - lineStart;
+                            outs.get(variant).append(unformatted).append("\n");
+                        }
+                        lineStart = lineEnd + 1;
+                    }
+                    chunkChars += text.length();
+                }
+                metrics.chunk(chunkChars);
+            }
+
+            metrics.stage(Metrics.Stage.SET_NEW_LINES, newLinesNanos, newLinesChars);
+            metrics.stage(Metrics.Stage.UNFORMAT, unformatNanos, unformatChars);
+            Metrics.commitStage(inFileName, Metrics.Stage.SET_NEW_LINES, newLinesNanos, newLinesChars);
+            Metrics.commitStage(inFileName, Metrics.Stage.UNFORMAT, unformatNanos, unformatChars);
+        }
+        catch (Throwable e) {
+            fail(e);
+            /* The producer may be stuck on a full queue nobody takes from anymore */
+            producer.interrupt();
+        }
+        finally {
+            closeAll(outs);
+            closeAll(translatedWriters);
+        }
+    }
+
+    private void closeAll(List<GameTextWriter> writers) {
+        for (GameTextWriter writer : writers) {
+            try {
+                writer.close();
+            }
+            catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+}
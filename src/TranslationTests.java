@@ -1,15 +1,60 @@
 import java.util.Scanner;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TranslationTests {
 
     public static void main(String[] args) {
 
+        /*
+         * Run before testSplit and testRealFormat2: they were made with chunks of 3,250
+         * characters and stop the run with any other MAX_CHARS_PER_CHUNK.
+         */
+        testCache("tests/testCache_temp.dat");
+        testJournal("tests/testJournal_temp.dat");
+        testManifest("tests/testManifest_temp.dat");
+        testReader("tests/testReader_temp.txt");
+        testWriter("tests/testWriter_temp.txt");
+        testRetry();
+        testHedging();
+        testStubServer();
+        testHistogram();
+        testParser();
+        testLanguageTree();
+        testExpansion("tests/testExpansion_temp.dat");
+        testWrap();
+        testValidator();
+        testDedup("tests/testDedup_temp.dat");
+        testRepair("tests/testRepair_temp.dat");
+        testBatching();
+        testPipeline("tests/testPipeline_temp");
+
         testFormatting("tests/testBasic");
         testFormatting("tests/testNUL");
         testFormatting("tests/testIds");
         testFormatting("tests/testRealFormat1");
+        testFormatting("tests/testDupIds");
         testFormatting("tests/testSplit");
         testFormatting("tests/testRealFormat2");
 
@@ -19,7 +64,9 @@ public class TranslationTests {
 
     /**
      * Ensures that the splitIntoChunksAndFormat() and unformat() methods works as intended giving
-     * correct results on test cases specified by the path in the parameter
+     * correct results on test cases specified by the path in the parameter, with the file cut
+     * into parts done in parallel, both as big as FORMATTER makes them and many small ones, and
+     * that streaming the file line by line like the pipeline gives the same chunks.
      * @param filename path to file containing the input text.
      */
     public static void testFormatting(String filename) {
@@ -41,14 +88,1025 @@ public class TranslationTests {
             }
 
 
+            /* Parts of 16 bytes, so even the smallest files are cut up */
+            ParallelFormatter formatter = new ParallelFormatter(ForkJoinPool.commonPool(), 16);
+            BadTranslation.splitTextIntoChunksAndFormat(filename + ".txt", filename + "_temp3.txt", formatter);
+            BadTranslation.unformat(filename + "_temp1.txt", filename + "_temp4.txt", formatter);
+            pass = assertEqualsFile(filename + "_temp3.txt", filename + "_a.txt")
+                    && assertEqualsFile(filename + "_temp4.txt", filename + ".txt");
+            if (!pass) {
+                System.out.println("FAILED TEST: ParallelFormatter");
+                System.exit(0);
+            }
+
+
+            /* Line by line, the way the pipeline streams a file, the chunks must come out the same */
+            StringBuilder streamed = new StringBuilder();
+            try (GameTextReader reader = new GameTextReader(filename + ".txt", BadTranslation.GAME_CHARSET)) {
+                BadTranslation.formatIntoChunks(reader, filename, new BadTranslation.ChunkSink() {
+                    @Override
+                    public void line(CharSequence formattedLine) {
+                        streamed.append(formattedLine).append("\n");
+                    }
+
+                    @Override
+                    public void endOfChunk() {
+                        streamed.append("\n");
+                    }
+                });
+            }
+            pass = streamed.toString().equals(
+                    Files.readString(Path.of(filename + "_temp1.txt"), BadTranslation.GAME_CHARSET));
+            if (!pass) {
+                System.out.println("FAILED TEST: formatIntoChunks");
+                System.exit(0);
+            }
+
+
             BadTranslation.deleteTextFile(filename + "_temp1.txt");
             BadTranslation.deleteTextFile(filename + "_temp2.txt");
+            BadTranslation.deleteTextFile(filename + "_temp3.txt");
+            BadTranslation.deleteTextFile(filename + "_temp4.txt");
+
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+
+    }
+
+    /**
+     * Ensures that translations stored in the TranslationCache are found again after the
+     * cache is reopened, that the least recently used translations are evicted once the
+     * cache is full, and that a record cut off at the end or a rewrite of the file loses
+     * none of the others.
+     * @param filename path of a temporary cache file to use for the test.
+     */
+    public static void testCache(String filename) {
+        try {
+            TranslationCache cache = new TranslationCache(filename, 2);
+            cache.put("en", "fr", "Yes", "Oui");
+            cache.put("en", "fr", "No", "Non");
+            cache.close();
+
+            cache = new TranslationCache(filename, 2);
+            boolean pass = "Non".equals(cache.get("en", "fr", "No"))
+                    && "Oui".equals(cache.get("en", "fr", "Yes"))
+                    && cache.get("fr", "en", "Yes") == null;
+
+            /* "Yes" was used most recently, so "No" is the one to go */
+            cache.put("en", "af", "Yes", "Ja");
+            pass = pass && cache.get("en", "fr", "No") == null && "Oui".equals(cache.get("en", "fr", "Yes"));
+            cache.close();
+
+            /* A record cut off after a length far past the end of the file is left out, not read */
+            byte[] torn = new byte[Hashes.SHA256_LENGTH + 7];
+            torn[Hashes.SHA256_LENGTH] = 0x7f;
+            Files.write(Path.of(filename), torn, StandardOpenOption.APPEND);
+            cache = new TranslationCache(filename, 2);
+            pass = pass && "Ja".equals(cache.get("en", "af", "Yes")) && cache.size() == 2;
+
+            /* Enough translations to rewrite the file, which must still hold the newest ones */
+            for (int i = 0; i < 5; i++) {
+                cache.put("en", "de", "text " + i, "Text " + i);
+            }
+            cache.close();
+            cache = new TranslationCache(filename, 2);
+            pass = pass && "Text 4".equals(cache.get("en", "de", "text 4")) && cache.size() == 2
+                    && !new File(filename + ".tmp").exists();
+            cache.close();
+
+            BadTranslation.deleteTextFile(filename);
+            if (!pass) {
+                System.out.println("FAILED TEST: TranslationCache");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that chunks recorded in the ChunkJournal are found again after the journal
+     * is reopened, but only for the same chunk text and the same chain of languages.
+     * @param filename path of a temporary journal file to use for the test.
+     */
+    public static void testJournal(String filename) {
+        try {
+            ChunkJournal journal = new ChunkJournal(filename, "en fr en");
+            journal.record(0, "Yes", "Yeah");
+            journal.record(2, "No", "Nope");
+            journal.close();
+
+            journal = new ChunkJournal(filename, "en fr en");
+            boolean pass = "Yeah".equals(journal.get(0, "Yes"))
+                    && journal.get(1, "Maybe") == null
+                    && "Nope".equals(journal.get(2, "No"))
+                    && journal.get(2, "Changed") == null;
+            journal.close();
+
+            /* A different chain of languages must not reuse the old translations */
+            journal = new ChunkJournal(filename, "en ja en");
+            pass = pass && journal.get(0, "Yes") == null;
+
+            if (!journal.delete() || !pass) {
+                System.out.println("FAILED TEST: ChunkJournal");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that the TranslationManifest hands back the segments of the last run for the same
+     * chain, and only keeps the segments seen by the run that saved it.
+     * @param filename path of a temporary manifest file to use for the test.
+     */
+    public static void testManifest(String filename) {
+        try {
+            TranslationManifest manifest = new TranslationManifest(filename, "en fr en", 2);
+            boolean pass = manifest.get("Yes") == null;
+            manifest.put("Yes", List.of("Yeah", "Yep"));
+            manifest.put("No", List.of("Nope", "Nah"));
+            manifest.save();
+
+            /* "No" is taken out of the game, so it is left out of the next manifest */
+            manifest = new TranslationManifest(filename, "en fr en", 2);
+            pass = pass && List.of("Yeah", "Yep").equals(manifest.get("Yes"))
+                    && manifest.get("Maybe") == null
+                    && manifest.summary().equals(
+                            "1 segments unchanged, 1 new or changed and 1 gone since the last run");
+            manifest.save();
+
+            manifest = new TranslationManifest(filename, "en fr en", 2);
+            pass = pass && manifest.get("No") == null && manifest.get("Yes") != null;
+
+            /* A segment kept from the journal is carried over, but counted neither way */
+            manifest = new TranslationManifest(filename, "en fr en", 2);
+            manifest.keep("Yes");
+            manifest.keep("Maybe");
+            pass = pass && manifest.summary().equals(
+                    "0 segments unchanged, 0 new or changed and 0 gone since the last run");
+            manifest.save();
+            manifest = new TranslationManifest(filename, "en fr en", 2);
+            pass = pass && manifest.get("Yes") != null;
+
+            /* A different chain of languages must not reuse the old translations */
+            manifest = new TranslationManifest(filename, "en ja en", 2);
+            pass = pass && manifest.get("Yes") == null;
+
+            if (!BadTranslation.deleteTextFile(filename) || !pass) {
+                System.out.println("FAILED TEST: TranslationManifest");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that the GameTextReader splits lines on every kind of line break, keeps null and
+     * non-ASCII characters, and reports text that is not valid in its charset as an error.
+     * @param filename path of a temporary text file to use for the test.
+     */
+    public static void testReader(String filename) {
+        try {
+            /* Every kind of line break, a NUL and a non-ASCII character must come back exactly */
+            byte[] bytes = "one\r\ntwo\0three\rf\u00e9te\n\nlast".getBytes(StandardCharsets.UTF_8);
+            Files.write(Path.of(filename), bytes);
+
+            List<String> lines = new ArrayList<>();
+            GameTextReader reader = new GameTextReader(filename, StandardCharsets.UTF_8);
+            CharSequence line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line.toString());
+            }
+            reader.close();
+            boolean pass = lines.equals(List.of("one", "two\0three", "f\u00e9te", "", "last"));
+
+            /* Text that is not valid in the charset is an error, not a replacement character */
+            Files.write(Path.of(filename), new byte[] {'o', 'k', (byte) 0xE9, '\n'});
+            reader = new GameTextReader(filename, StandardCharsets.UTF_8);
+            try {
+                reader.readLine();
+                pass = false;
+            }
+            catch (IOException e) {
+                /* Expected */
+            }
+            reader.close();
+
+            if (!new File(filename).delete() || !pass) {
+                System.out.println("FAILED TEST: GameTextReader");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that the GameTextWriter puts back together a surrogate pair split between two
+     * appends, and reports half of a pair left at the end instead of dropping it.
+     * @param filename path of a temporary text file to use for the test.
+     */
+    public static void testWriter(String filename) {
+        try {
+            GameTextWriter writer = new GameTextWriter(filename, StandardCharsets.UTF_8);
+            writer.append("a\0\uD83D").append("\uDE00b\n");
+            writer.close();
+            boolean pass = Arrays.equals(Files.readAllBytes(Path.of(filename)),
+                    "a\0\uD83D\uDE00b\n".getBytes(StandardCharsets.UTF_8));
+
+            writer = new GameTextWriter(filename, StandardCharsets.UTF_8);
+            writer.append("cut off \uD83D");
+            try {
+                writer.close();
+                pass = false;
+            }
+            catch (CharacterCodingException e) {
+                /* Expected */
+            }
+
+            if (!new File(filename).delete() || !pass) {
+                System.out.println("FAILED TEST: GameTextWriter");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that the RetryingTranslator retries 503s within the budget, fails a 400 and
+     * programming errors at once without retrying, and sends nothing once the budget is used up,
+     * and that only a 429 or several 5xx in a row lower the rate.
+     */
+    public static void testRetry() {
+        try {
+            /* Answers 503 twice, then translates, then answers 400 */
+            AtomicInteger calls = new AtomicInteger();
+            Translator flaky = (langFrom, langTo, texts) -> {
+                int call = calls.incrementAndGet();
+                if (call <= 2 || call == 4) {
+                    int status = (call <= 2) ? 503 : 400;
+                    return CompletableFuture.failedFuture(
+                            new ScriptResponseException(status, "status " + status, (Duration) null));
+                }
+                return CompletableFuture.completedFuture(List.of(texts.get(0).toUpperCase()));
+            };
+
+            RateLimiter limiter = new RateLimiter(50, 1, 100, 1, 8, 3);
+            RequestBudget budget = new RequestBudget(4);
+            RetryingTranslator translator = new RetryingTranslator(flaky, limiter, budget, 5,
+                    Duration.ofMillis(1), Duration.ofMillis(5));
+
+            boolean pass = translator.translate("en", "fr", List.of("yes")).equals(List.of("YES"))
+                    && translator.retries() == 2 && translator.throttled() == 0
+                    && budget.used() == 3 && limiter.rate() == 51;
+
+            /* Two 503s are retried without a cut, a third in a row halves the rate, as does a 429 */
+            limiter.onServerError();
+            limiter.onServerError();
+            limiter.onSuccess();
+            limiter.onServerError();
+            limiter.onServerError();
+            pass = pass && limiter.rate() == 52;
+            limiter.onServerError();
+            pass = pass && limiter.rate() == 26;
+            limiter.onThrottle();
+            pass = pass && limiter.rate() == 13;
+
+            /* A 400 would fail the same way again, so it is not retried */
+            try {
+                translator.translate("en", "fr", List.of("no"));
+                pass = false;
+            }
+            catch (ScriptResponseException e) {
+                pass = pass && e.statusCode() == 400 && budget.used() == 4;
+            }
+
+            /* Once the budget is used up nothing more is sent */
+            try {
+                translator.translate("en", "fr", List.of("maybe"));
+                pass = false;
+            }
+            catch (IOException e) {
+                pass = pass && calls.get() == 4;
+            }
+
+            /* A bug in the delegate fails at once, whether it throws or hands back the exception */
+            Translator broken = (langFrom, langTo, texts) -> {
+                calls.incrementAndGet();
+                if (texts.get(0).equals("throw")) {
+                    throw new IllegalStateException("broken");
+                }
+                return CompletableFuture.failedFuture(new NullPointerException("broken"));
+            };
+            budget = new RequestBudget(10);
+            translator = new RetryingTranslator(broken, limiter, budget, 5, Duration.ofMillis(1), Duration.ofMillis(5));
+            for (String text : List.of("throw", "fail")) {
+                try {
+                    translator.translate("en", "fr", List.of(text));
+                    pass = false;
+                }
+                catch (IOException e) {
+                    pass = pass && e.getCause() instanceof RuntimeException;
+                }
+            }
+            pass = pass && translator.retries() == 0 && budget.used() == 2 && calls.get() == 6;
 
+            if (!pass) {
+                System.out.println("FAILED TEST: RetryingTranslator");
+                System.exit(0);
+            }
         }
         catch(IOException e) {
             System.out.println(e.getMessage());
         }
+    }
 
+    /**
+     * Ensures that the HedgingTranslator sends a request again once it takes longer than the
+     * others did, uses the reply that comes first, and sends no more requests again than its
+     * fraction and its permit allow.
+     */
+    public static void testHedging() {
+        try {
+            /* Every call answers right away, except calls 6 and 8 which never answer */
+            AtomicInteger calls = new AtomicInteger();
+            Translator slow = (langFrom, langTo, texts) -> {
+                int call = calls.incrementAndGet();
+                if (call == 6 || call == 8) {
+                    return new CompletableFuture<>();
+                }
+                return CompletableFuture.completedFuture(List.of(texts.get(0).toUpperCase()));
+            };
+
+            AtomicBoolean permit = new AtomicBoolean(true);
+            HedgingTranslator translator = new HedgingTranslator(slow, 95, 5, 0.2, permit::get);
+            boolean pass = true;
+            for (int i = 0; i < 5; i++) {
+                pass = pass && translator.translate("en", "fr", List.of("yes")).equals(List.of("YES"));
+            }
+
+            /* Call 6 takes longer than the first five did, so the request is sent again as call 7 */
+            pass = pass && translator.translate("en", "fr", List.of("no")).equals(List.of("NO"))
+                    && translator.hedges() == 1 && translator.hedgesWon() == 1 && calls.get() == 7;
+
+            /* 7 requests at 0.2 only allow 1 to be sent again, so call 8 is left alone */
+            CompletableFuture<List<String>> stuck = translator.translateAsync("en", "fr", List.of("oui"));
+            Thread.sleep(100);
+            pass = pass && !stuck.isDone() && translator.hedges() == 1 && calls.get() == 8;
+
+            /* Never sent again without a permit, e.g. while the limiter has no token free */
+            calls.set(0);
+            translator = new HedgingTranslator(slow, 95, 5, 1, () -> false);
+            for (int i = 0; i < 5; i++) {
+                translator.translate("en", "fr", List.of("yes"));
+            }
+            stuck = translator.translateAsync("en", "fr", List.of("non"));
+            Thread.sleep(100);
+            pass = pass && !stuck.isDone() && translator.hedges() == 0 && calls.get() == 6;
+
+            /* The limiter only gives out a token that is free right away */
+            RateLimiter limiter = new RateLimiter(0.2, 0.2, 0.2, 0, 1, 3);
+            pass = pass && limiter.tryAcquire() && !limiter.tryAcquire();
+
+            if (!pass) {
+                System.out.println("FAILED TEST: HedgingTranslator");
+                System.exit(0);
+            }
+        }
+        catch(IOException | InterruptedException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that ExpansionRatios learns the growth of each hop and keeps it between runs, and
+     * that the worst expansion of a chain only counts the hops texts are sent to.
+     * @param filename path of a temporary ratio file to use for the test.
+     */
+    public static void testExpansion(String filename) {
+        try {
+            ExpansionRatios ratios = new ExpansionRatios(filename, 100, 500);
+            ratios.record("en", "fr", 1000, 1300);
+            ratios.record("fr", "en", 1300, 1000);
+            ratios.record("en", "ja", 50, 20); /* Too little to go by yet */
+            ratios.save();
+
+            /* Scaled down to 500 characters when saved, but still the same ratio */
+            ratios = new ExpansionRatios(filename, 100, 500);
+            LanguageTree tree = new LanguageTree("en", List.<String[]>of(new String[] {"fr", "de"},
+                    new String[] {"ja"}));
+            boolean pass = Math.abs(ratios.ratio("en", "fr") - 1.3) < 1e-3
+                    && ratios.ratio("en", "ja") == 1
+                    && ratios.ratio("fr", "de") == 1;
+
+            /* fr -> de is sent 1.3 times the English and de -> en 1.95 times, what comes back is not sent */
+            pass = pass && Math.abs(tree.worstExpansion(ratios) - 1.3) < 1e-3;
+            ratios.record("fr", "de", 1000, 1500);
+            pass = pass && Math.abs(tree.worstExpansion(ratios) - 1.95) < 1e-3;
+            ratios.record("de", "en", 1000, 3000);
+            pass = pass && Math.abs(tree.worstExpansion(ratios) - 1.95) < 1e-3;
+
+            if (!BadTranslation.deleteTextFile(filename) || !pass) {
+                System.out.println("FAILED TEST: ExpansionRatios");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that the StubTranslationServer answers the batch protocol of translate.gs the
+     * same way every time, and that its injected errors and quota reach the translator.
+     */
+    public static void testStubServer() {
+        StubTranslationServer.Settings settings = new StubTranslationServer.Settings();
+        settings.quota = 1;
+        StubTranslationServer stub = null;
+        try {
+            stub = new StubTranslationServer(0, settings);
+            stub.start();
+            Translator translator = new HttpClientTranslator(stub.endpoint(), Duration.ofSeconds(5),
+                    Duration.ofSeconds(5));
+
+            boolean pass = translator.translate("en", "fr", List.of("Hello there Mario", "It's me"))
+                    .equals(List.of("Mario Hello there", "me It&#39;s"));
+
+            /* Past the quota the script answers with an error page, which is not worth retrying */
+            try {
+                translator.translate("en", "fr", List.of("Hello"));
+                pass = false;
+            }
+            catch (ScriptResponseException e) {
+                pass = pass && !e.isRetryable();
+            }
+            stub.stop();
+
+            settings.quota = Integer.MAX_VALUE;
+            settings.errorRate = 1;
+            stub = new StubTranslationServer(0, settings);
+            stub.start();
+            translator = new HttpClientTranslator(stub.endpoint(), Duration.ofSeconds(5), Duration.ofSeconds(5));
+            try {
+                translator.translate("en", "fr", List.of("Hello"));
+                pass = false;
+            }
+            catch (ScriptResponseException e) {
+                pass = pass && e.statusCode() == 503 && e.isRetryable();
+            }
+
+            if (!pass) {
+                System.out.println("FAILED TEST: StubTranslationServer");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+        finally {
+            if (stub != null) {
+                stub.stop();
+            }
+        }
+    }
+
+    /**
+     * Ensures that the LatencyHistogram counts every request and gives its percentiles to within
+     * the width of one bucket.
+     */
+    public static void testHistogram() {
+        /* 1 ms to 100 ms, so every percentile is known */
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(millis * 1_000_000L);
+        }
+
+        /* Buckets are a quarter of a power of two wide, so allow that much error */
+        long p50 = histogram.percentileNanos(50);
+        long p95 = histogram.percentileNanos(95);
+        boolean pass = histogram.count() == 100 && histogram.maxNanos() == 100_000_000L
+                && p50 >= 50_000_000L && p50 <= 50_000_000L * 5 / 4
+                && p95 >= 95_000_000L && p95 <= 100_000_000L
+                && histogram.percentileNanos(100) == 100_000_000L;
+
+        if (!pass) {
+            System.out.println("FAILED TEST: LatencyHistogram");
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Ensures that the MessageParser only marks the text of the messages as dialogue, split around
+     * the tags inside it, gets back in step at the next message after a stray &lt;NUL&gt;, translates
+     * a chunk that is not made of messages whole, and that joining the spans of every chunk gives
+     * back the whole file.
+     */
+    public static void testParser() {
+        try {
+            /* Only the text of the messages is dialogue, split around the tags inside it */
+            MessageParser parser = new MessageParser();
+            List<String> dialogue = new ArrayList<>();
+            for (MessageParser.Span span : parser.parse("<msg_a><NUL>Hi <k> there, Mario!<NUL><msg_b><NUL> ")) {
+                if (span.dialogue) dialogue.add(span.text);
+            }
+            for (MessageParser.Span span : parser.parse("<select 1 -1 150 40>Yes<NUL><msg_c><NUL>")) {
+                if (span.dialogue) dialogue.add(span.text);
+            }
+
+            /* The message cut off before its <NUL> does not throw the next ones out of step */
+            for (MessageParser.Span span : parser.parse("<system><msg_d><NUL>Hello<NUL><msg_e><NUL>Bye<NUL>")) {
+                if (span.dialogue) dialogue.add(span.text);
+            }
+            boolean pass = dialogue.equals(List.of("Hi", "there, Mario!", "Yes", "Hello", "Bye"));
+
+            /* Text that is not in messages at all is sent whole */
+            List<MessageParser.Span> spans = new MessageParser().parse("<NUL>Hello, <k>Bob!<NUL> ");
+            pass = pass && spans.size() == 1 && spans.get(0).dialogue
+                    && spans.get(0).text.equals("<NUL>Hello, <k>Bob!<NUL> ");
+
+            /*
+             * The first file starts in the middle of a message, and the second has a message cut off
+             * by a splice part of the way through. Every message's text must still be dialogue, and
+             * joining the spans of every chunk gives back the whole file.
+             */
+            List<List<String>> fileDialogue = new ArrayList<>();
+            for (String formatted : List.of("tests/testRealFormat1_a.txt", "tests/testRealFormat2_a.txt")) {
+                List<String> segments = new ArrayList<>();
+                parser = new MessageParser();
+                for (String chunk : BadTranslation.readChunks(formatted)) {
+                    StringBuilder joined = new StringBuilder();
+                    for (MessageParser.Span span : parser.parse(chunk)) {
+                        joined.append(span.text);
+                        if (span.dialogue) segments.add(span.text);
+                    }
+                    pass = pass && joined.toString().equals(chunk);
+                }
+                fileDialogue.add(segments);
+            }
+            List<String> first = fileDialogue.get(0);
+            List<String> second = fileDialogue.get(1);
+            pass = pass && first.size() == 6
+                    && first.get(0).equals("Do you want to use theReturn Pipe to warp back toFlipside?")
+                    && first.get(1).equals("YesNo")
+                    && first.get(5).startsWith("But it's a one-way trip")
+                    && second.size() == 120
+                    && second.get(0).equals("Flipside")
+                    && second.get(95).equals("Tippi and Count Bleck")
+                    && second.get(96).startsWith("Mario was called upon")
+                    && second.get(119).startsWith("The sign says");
+
+            if (!pass) {
+                System.out.println("FAILED TEST: MessageParser");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that the LanguageTree translates hops shared by several chains only once, and hands
+     * back every variant translated through its own chain.
+     */
+    public static void testLanguageTree() {
+        try {
+            LanguageTree tree = new LanguageTree("en", List.of(
+                    new String[] {"af", "pt", "sw"}, new String[] {"af", "pt", "ru"}, new String[] {"fr"}));
+
+            /* Each hop adds its languages to the text, so the result shows the path it took */
+            List<String> hops = new ArrayList<>();
+            List<List<String>> variants = tree.translate(List.of("x"), (langFrom, langTo, texts) -> {
+                hops.add(langFrom + ">" + langTo);
+                return List.of(texts.get(0) + " " + langTo);
+            });
+
+            boolean pass = tree.variantCount() == 3 && tree.hopCount() == 8 && hops.size() == 8
+                    && variants.get(0).equals(List.of("x af pt sw en"))
+                    && variants.get(1).equals(List.of("x af pt ru en"))
+                    && variants.get(2).equals(List.of("x fr en"))
+                    && tree.describe().equals("en af pt sw en | en af pt ru en | en fr en");
+
+            if (!pass) {
+                System.out.println("FAILED TEST: LanguageTree");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that the LineWrapper breaks lines at spaces by width, starts every run of tags on a
+     * new line, measures entities as one character and only appends to the buffer it is given.
+     */
+    public static void testWrap() {
+        /* Counting characters, 10 to a line */
+        LineWrapper wrapper = new LineWrapper(GlyphWidths.monospace(), 10);
+        StringBuilder out = new StringBuilder();
+
+        wrapper.wrap("<msg_a><NUL>It&#39;s a lovely day in Flipside<icon <PAD_A> 0.58 0 0 0>Press it", out);
+        boolean pass = out.toString().equals(
+                "\n<msg_a><NUL>It&#39;s a\nlovely day\nin\nFlipside\n<icon <PAD_A> 0.58 0 0 0>Press it");
+
+        /* A word wider than a line keeps a line of its own, and the buffer is only appended to */
+        out.setLength(0);
+        out.append("kept");
+        wrapper.wrap("a Supercalifragilistic b", out);
+        pass = pass && out.toString().equals("kept\na\nSupercalifragilistic\nb");
+
+        /* Wide glyphs fill a line sooner than narrow ones */
+        wrapper = new LineWrapper(GlyphWidths.dialogueFont(), 60);
+        out.setLength(0);
+        wrapper.wrap("iii iii iii mmm mmm", out);
+        pass = pass && out.toString().equals("\niii iii iii\nmmm\nmmm");
+
+        if (!pass) {
+            System.out.println("FAILED TEST: LineWrapper");
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Ensures that the ChunkValidator passes a chunk whose markup came back as it was, and
+     * catches dropped <NUL>s, changed identifiers and tags made up by the translator.
+     */
+    public static void testValidator() {
+        String source = "<place_town><NUL>Flipside<NUL><k><placeholder>Go <icon <PAD_A> 0.58 0 0 0> now<NUL>";
+
+        boolean pass = ChunkValidator.check(source,
+                "<place_town><NUL>Flipperside<NUL><k><placeholder>Leave <icon <PAD_A> 0.58 0 0 0> soon<NUL>") == null;
+        pass = pass && "2 <NUL> instead of 3".equals(ChunkValidator.check(source,
+                "<place_town><NUL>Flipside<k><placeholder>Go <icon <PAD_A> 0.58 0 0 0> now<NUL>"));
+        pass = pass && "tags changed".equals(ChunkValidator.check(source,
+                "<place_city><NUL>Flipside<NUL><k><placeholder>Go <icon <PAD_A> 0.58 0 0 0> now<NUL>"));
+        pass = pass && "3 control tag instead of 2".equals(ChunkValidator.check(source,
+                "<place_town><NUL>Flip<b>side<NUL><k><placeholder>Go <icon <PAD_A> 0.58 0 0 0> now<NUL>"));
+
+        /* A lone < is text, not a tag */
+        pass = pass && ChunkValidator.isClean("1 < 2 &gt; 0") && !ChunkValidator.isClean("Flip<b>side")
+                && !ChunkValidator.isClean("Flip\0side");
+
+        if (!pass) {
+            System.out.println("FAILED TEST: ChunkValidator");
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Ensures that the TranslationEngine sends a segment found in several chunks only once, also
+     * across files, puts its translation back in every chunk holding it and counts the repeats,
+     * and that a shared segment that could not be translated leaves every chunk holding it in
+     * English, while a chunk coming after them tries it again.
+     * @param filename path of a temporary journal file to use for the test.
+     */
+    public static void testDedup(String filename) {
+        try {
+            /* Upper cases every text, or fails every request holding "Boom" while down */
+            AtomicBoolean down = new AtomicBoolean();
+            List<String> sent = Collections.synchronizedList(new ArrayList<>());
+            Translator counting = (langFrom, langTo, texts) -> {
+                if (langFrom.equals("en")) sent.addAll(texts);
+                if (down.get() && texts.contains("Boom")) {
+                    return CompletableFuture.failedFuture(new IOException("Script is down"));
+                }
+                List<String> translated = new ArrayList<>();
+                for (String text : texts) translated.add(text.toUpperCase());
+                return CompletableFuture.completedFuture(translated);
+            };
+            BadTranslation.useTranslator(counting, List.<String[]>of(new String[] {"fr"}), null);
+            TranslationEngine engine = new TranslationEngine(2, () -> 4500, 5, 2);
+            ChunkJournal journal = new ChunkJournal(filename, BadTranslation.languageChain());
+            TranslationManifest manifest = new TranslationManifest(filename + ".manifest",
+                    BadTranslation.languageChain(), 1);
+
+            /* "Yes" is in both chunks of the first file and in the second file */
+            List<Future<TranslationEngine.ChunkResult>> results = new ArrayList<>();
+            TranslationEngine.Batcher batcher = engine.newBatcher(journal, manifest, results::add);
+            batcher.add(0, "<msg_a><NUL>Yes<NUL><msg_b><NUL>Hello there<NUL>");
+            batcher.add(1, "<msg_c><NUL>Yes<NUL>");
+            batcher.flush();
+            batcher = engine.newBatcher(journal, manifest, results::add);
+            batcher.add(2, "<msg_d><NUL>Yes<NUL><msg_e><NUL>No<NUL>");
+            batcher.flush();
+
+            List<String> texts = new ArrayList<>();
+            for (Future<TranslationEngine.ChunkResult> result : results) {
+                texts.add(TranslationEngine.await(result).texts.get(0));
+            }
+            String counts = BadTranslation.metrics.toJson(0, 0, 0, 0, 0);
+            boolean pass = texts.equals(List.of("<msg_a><NUL>YES<NUL><msg_b><NUL>HELLO THERE<NUL>",
+                            "<msg_c><NUL>YES<NUL>", "<msg_d><NUL>YES<NUL><msg_e><NUL>NO<NUL>"))
+                    && sent.size() == 3 && sent.containsAll(List.of("Yes", "Hello there", "No"))
+                    && counts.contains("\"uniqueSegments\": 3,") && counts.contains("\"duplicateSegments\": 2,");
+
+            /* Both chunks holding "Boom" wait on the one request sent for it, and both fail */
+            down.set(true);
+            results.clear();
+            batcher = engine.newBatcher(journal, manifest, results::add);
+            batcher.add(3, "<msg_f><NUL>Boom<NUL>");
+            batcher.add(4, "<msg_g><NUL>Boom<NUL>");
+            batcher.flush();
+            for (Future<TranslationEngine.ChunkResult> result : results) {
+                TranslationEngine.ChunkResult chunk = TranslationEngine.await(result);
+                pass = pass && !chunk.translated && chunk.texts.get(0).endsWith("<NUL>Boom<NUL>");
+            }
+            pass = pass && Collections.frequency(sent, "Boom") == 1;
+
+            /* The failure is not kept, so the next chunk holding "Boom" sends it again */
+            down.set(false);
+            results.clear();
+            batcher = engine.newBatcher(journal, manifest, results::add);
+            batcher.add(5, "<msg_h><NUL>Boom<NUL>");
+            batcher.flush();
+            pass = pass && TranslationEngine.await(results.get(0)).texts.get(0).equals("<msg_h><NUL>BOOM<NUL>")
+                    && Collections.frequency(sent, "Boom") == 2;
+            engine.shutdown();
+
+            if (!journal.delete() || !pass) {
+                System.out.println("FAILED TEST: TranslationEngine segments");
+                System.exit(0);
+            }
+        }
+        catch(IOException | InterruptedException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that the TranslationEngine sends only the broken segments of a chunk that fails
+     * validation again, each in a request of its own and past the cache, that it gives up on a
+     * segment after maxRepairAttempts, and that the repaired and broken chunks are counted.
+     * @param filename path of a temporary cache file to use for the test.
+     */
+    public static void testRepair(String filename) {
+        try {
+            /* "Go now" comes back with a tag of its own the first time, "Stuck" every time */
+            Map<String, Integer> sends = new ConcurrentHashMap<>();
+            List<Integer> requestSizes = Collections.synchronizedList(new ArrayList<>());
+            Translator breaking = (langFrom, langTo, texts) -> {
+                List<String> translated = new ArrayList<>();
+                for (String text : texts) {
+                    int send = langFrom.equals("en") ? sends.merge(text, 1, Integer::sum) : 0;
+                    boolean broken = text.equals("Stuck") || (text.equals("Go now") && send == 1);
+                    translated.add((broken && langFrom.equals("en") ? "<b>" : "") + text.toUpperCase());
+                }
+                if (langFrom.equals("en")) requestSizes.add(texts.size());
+                return CompletableFuture.completedFuture(translated);
+            };
+            TranslationCache cache = new TranslationCache(filename, 100);
+            BadTranslation.useTranslator(breaking, List.<String[]>of(new String[] {"fr"}), cache);
+            TranslationEngine engine = new TranslationEngine(2, () -> 4500, 5, 2);
+            ChunkJournal journal = new ChunkJournal(filename + ".journal", BadTranslation.languageChain());
+            TranslationManifest manifest = new TranslationManifest(filename + ".manifest",
+                    BadTranslation.languageChain(), 1);
+
+            List<Future<TranslationEngine.ChunkResult>> results = new ArrayList<>();
+            TranslationEngine.Batcher batcher = engine.newBatcher(journal, manifest, results::add);
+            batcher.add(0, "<msg_a><NUL>Go now<NUL><msg_b><NUL>Fine<NUL>");
+            batcher.add(1, "<msg_c><NUL>Stuck<NUL>");
+            batcher.flush();
+            TranslationEngine.ChunkResult repaired = TranslationEngine.await(results.get(0));
+            TranslationEngine.ChunkResult broken = TranslationEngine.await(results.get(1));
+            engine.shutdown();
+
+            /* One batch, then "Go now" once and "Stuck" twice on their own, the cache holding the repair */
+            String counts = BadTranslation.metrics.toJson(0, 0, 0, 0, 0);
+            boolean pass = repaired.translated
+                    && repaired.texts.get(0).equals("<msg_a><NUL>GO NOW<NUL><msg_b><NUL>FINE<NUL>")
+                    && !broken.translated && broken.texts.get(0).equals("<msg_c><NUL>Stuck<NUL>")
+                    && sends.equals(Map.of("Go now", 2, "Fine", 1, "Stuck", 3))
+                    && requestSizes.equals(List.of(3, 1, 1, 1))
+                    && "GO NOW".equals(cache.get("en", "fr", "Go now"))
+                    && counts.contains("\"invalidChunks\": 2,") && counts.contains("\"repairedChunks\": 1,");
+            cache.close();
+
+            if (!journal.delete() || !BadTranslation.deleteTextFile(filename) || !pass) {
+                System.out.println("FAILED TEST: TranslationEngine repairs");
+                System.exit(0);
+            }
+        }
+        catch(IOException | InterruptedException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that texts survive the JSON of a batch request and its answer, that translateBatch()
+     * packs texts into requests of at most charsPerBatch() characters counting the separator and
+     * hands back their translations in order, that an answer with the wrong number of texts is an
+     * error, and that the TranslationEngine keeps its batches under maxCharsPerBatch.
+     */
+    public static void testBatching() {
+        try {
+            List<String> tricky = List.of("Say \"hi\"", "back\\slash", "a\0b", "two\nlines", "f\u00eate \uD83D\uDE00",
+                    "<SEP>", "");
+            boolean pass = Json.parseStringArray(Json.stringArray(tricky)).equals(tricky);
+
+            /* Records how many characters each request holds, counting the separator after every text */
+            List<Integer> requestChars = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger extraParts = new AtomicInteger();
+            Translator measuring = (langFrom, langTo, texts) -> {
+                int chars = 0;
+                List<String> translated = new ArrayList<>();
+                for (String text : texts) {
+                    chars += text.length() + "<SEP>".length();
+                    translated.add(text.toUpperCase());
+                }
+                if (langFrom.equals("en")) requestChars.add(chars);
+                for (int i = extraParts.get(); i < 0; i++) translated.remove(translated.size() - 1);
+                for (int i = 0; i < extraParts.get(); i++) translated.add("extra");
+                return CompletableFuture.completedFuture(translated);
+            };
+            BadTranslation.useTranslator(measuring, List.<String[]>of(new String[] {"fr"}), null);
+
+            /* 12 texts of 1,000 characters only fit 4 to a request */
+            List<String> texts = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                texts.add(String.valueOf((char) ('a' + i)).repeat(1000));
+            }
+            List<String> translated = BadTranslation.translateBatch("en", "fr", texts);
+            for (int i = 0; i < texts.size(); i++) {
+                pass = pass && translated.get(i).equals(texts.get(i).toUpperCase());
+            }
+            pass = pass && requestChars.size() == 3;
+            for (int chars : requestChars) {
+                pass = pass && chars <= BadTranslation.charsPerBatch();
+            }
+
+            /* One text too few or too many can not be matched back to the texts */
+            for (int extra : new int[] {-1, 1}) {
+                extraParts.set(extra);
+                try {
+                    BadTranslation.translateBatch("en", "fr", List.of("Yes", "No"));
+                    pass = false;
+                }
+                catch (IOException e) {
+                    /* Expected */
+                }
+            }
+            extraParts.set(0);
+
+            /* Batches of at most 60 characters, each segment taking 5 more for its separator */
+            requestChars.clear();
+            TranslationEngine engine = new TranslationEngine(2, () -> 60, "<SEP>".length(), 2);
+            ChunkJournal journal = new ChunkJournal("tests/testBatching_temp.dat", BadTranslation.languageChain());
+            TranslationManifest manifest = new TranslationManifest("tests/testBatching_temp.manifest",
+                    BadTranslation.languageChain(), 1);
+            List<Future<TranslationEngine.ChunkResult>> results = new ArrayList<>();
+            TranslationEngine.Batcher batcher = engine.newBatcher(journal, manifest, results::add);
+            for (int i = 0; i < 10; i++) {
+                batcher.add(i, "<msg_" + i + "><NUL>Message number " + i + " is here<NUL>");
+            }
+            batcher.flush();
+            for (int i = 0; i < 10; i++) {
+                pass = pass && TranslationEngine.await(results.get(i)).texts.get(0)
+                        .equals("<msg_" + i + "><NUL>MESSAGE NUMBER " + i + " IS HERE<NUL>");
+            }
+            engine.shutdown();
+            pass = pass && requestChars.size() == 5;
+            for (int chars : requestChars) {
+                pass = pass && chars <= 60;
+            }
+
+            if (!journal.delete() || !pass) {
+                System.out.println("FAILED TEST: batching");
+                System.exit(0);
+            }
+        }
+        catch(IOException | InterruptedException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ensures that the TranslationPipeline writes the chunks of a file in order when their
+     * translations finish in the reverse order, through a queue far smaller than the file without
+     * getting stuck, and that a chunk failing in the writer stops the producer blocked on the full
+     * queue and is thrown from await().
+     * @param filename path of a temporary game text file to use for the test, without .txt.
+     */
+    public static void testPipeline(String filename) {
+        try {
+            /* Hundreds of messages, so the file is many times as long as a chunk, each text used twice */
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 300; i++) {
+                text.append("msg_").append(i).append('\0').append("This is message number ").append(i % 150)
+                        .append(" of the file, long enough\nto take up a line of its own").append('\0');
+            }
+            Files.writeString(Path.of(filename + ".txt"), text, BadTranslation.GAME_CHARSET);
+
+            /* Hands the texts back as they are, the earlier requests taking longer than the later ones */
+            AtomicInteger calls = new AtomicInteger();
+            Translator reversing = (langFrom, langTo, texts) -> CompletableFuture.supplyAsync(() -> texts,
+                    CompletableFuture.delayedExecutor(Math.max(0, 200 - 10 * calls.getAndIncrement()),
+                            TimeUnit.MILLISECONDS));
+            BadTranslation.useTranslator(reversing, List.<String[]>of(new String[] {"fr"}, new String[] {"de"}),
+                    null);
+
+            TranslationEngine engine = new TranslationEngine(4, () -> 500, 5, 2);
+            TranslationPipeline pipeline = new TranslationPipeline(filename + ".txt",
+                    List.of(filename + "_out.txt", filename + "_out2.txt"),
+                    new ChunkJournal(filename + ".journal", "test"),
+                    new TranslationManifest(filename + ".manifest", "test", 2), engine, 2, null, null);
+            pipeline.start();
+            int untranslated = awaitPipeline(pipeline);
+
+            /* Only the line breaks may differ, the messages must all be there in order */
+            String written = Files.readString(Path.of(filename + "_out.txt"), BadTranslation.GAME_CHARSET);
+            boolean pass = untranslated == 0 && pipeline.chunkCount() > 4
+                    && written.replaceAll("\\s", "").equals(text.toString().replaceAll("\\s", ""))
+                    && !new File(filename + ".journal").exists();
+
+            /* A chunk counts once however many variants it is written in */
+            pass = pass && BadTranslation.metrics.toJson(0, 0, 0, 0, 0)
+                    .contains("\"chunks\": " + pipeline.chunkCount() + ",");
+
+            /* Run again unchanged, a text used twice counted once, as in the manifest's summary */
+            BadTranslation.useTranslator(reversing, List.<String[]>of(new String[] {"fr"}, new String[] {"de"}),
+                    null);
+            pipeline = new TranslationPipeline(filename + ".txt",
+                    List.of(filename + "_out.txt", filename + "_out2.txt"),
+                    new ChunkJournal(filename + ".journal", "test"),
+                    new TranslationManifest(filename + ".manifest", "test", 2), engine, 2, null, null);
+            pipeline.start();
+            pass = pass && awaitPipeline(pipeline) == 0 && pipeline.changes().contains(" unchanged, 0 new");
+            String unchanged = pipeline.changes().substring(0, pipeline.changes().indexOf(' '));
+            pass = pass && Integer.parseInt(unchanged) < 300
+                    && BadTranslation.metrics.toJson(0, 0, 0, 0, 0).contains("\"unchangedSegments\": " + unchanged + ",");
+            BadTranslation.deleteTextFile(filename + ".manifest");
+
+            /* A journal that can not be written fails every chunk, the first one only once the queue is full */
+            calls.set(0);
+            ChunkJournal closed = new ChunkJournal(filename + ".journal", "test");
+            closed.close();
+            pipeline = new TranslationPipeline(filename + ".txt",
+                    List.of(filename + "_out.txt", filename + "_out2.txt"), closed,
+                    new TranslationManifest(filename + ".manifest", "test", 2), engine, 2, null, null);
+            pipeline.start();
+            try {
+                awaitPipeline(pipeline);
+                pass = false;
+            }
+            catch (IOException e) {
+                pass = pass && e.getMessage().startsWith("Chunk translation failed");
+            }
+            engine.shutdown();
+
+            BadTranslation.deleteTextFile(filename + ".journal");
+            BadTranslation.deleteTextFile(filename + ".manifest");
+            BadTranslation.deleteTextFile(filename + "_out.txt");
+            BadTranslation.deleteTextFile(filename + "_out2.txt");
+            if (!BadTranslation.deleteTextFile(filename + ".txt") || !pass) {
+                System.out.println("FAILED TEST: TranslationPipeline");
+                System.exit(0);
+            }
+        }
+        catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Helper for testPipeline(). Waits for a pipeline, failing the test if it takes so long that
+     * it must be stuck.
+     * @param pipeline the started pipeline.
+     * @return what await() returned.
+     * @throws IOException what await() threw.
+     */
+    private static int awaitPipeline(TranslationPipeline pipeline) throws IOException {
+        CompletableFuture<Integer> done = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pipeline.await();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            return done.get(30, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException e) {
+            throw ((UncheckedIOException) e.getCause()).getCause();
+        }
+        catch (InterruptedException | TimeoutException e) {
+            System.out.println("FAILED TEST: TranslationPipeline is stuck");
+            System.exit(0);
+            return 0;
+        }
     }
 
     /**
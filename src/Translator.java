@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/*
+ * ============== Translator.java =============
+ *
+ * A backend able to send one batch of texts to the translation script and
+ * hand back their translations. BadTranslation takes care of the cache and
+ * of packing texts into requests, so a backend only has to make the request.
+ */
+public interface Translator {
+
+    /**
+     * Translates a batch of texts with a single request.
+     *
+     * @param langFrom language of the texts, i.e. translated from.
+     * @param langTo language to translate the texts to.
+     * @param texts texts to translate.
+     * @return future of the translated texts, in the same order as the given texts.
+     */
+    CompletableFuture<List<String>> translateAsync(String langFrom, String langTo, List<String> texts);
+
+    /**
+     * Translates a batch of texts with a single request, waiting for the result.
+     *
+     * @param langFrom language of the texts, i.e. translated from.
+     * @param langTo language to translate the texts to.
+     * @param texts texts to translate.
+     * @return the translated texts, in the same order as the given texts.
+     * @throws IOException upon an issue in making a connection to the translation script and API
+     */
+    default List<String> translate(String langFrom, String langTo, List<String> texts) throws IOException {
+        return await(translateAsync(langFrom, langTo, texts));
+    }
+
+    /**
+     * Waits for a future returned by translateAsync(), turning its failure back into an IOException.
+     *
+     * @param result the future to wait for.
+     * @return the translated texts.
+     * @throws IOException if the translation failed.
+     */
+    static List<String> await(CompletableFuture<List<String>> result) throws IOException {
+        try {
+            return result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a translation");
+        }
+        catch (ExecutionException | CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -6,6 +6,15 @@ var mock = {
   }
 };
 
+var mockBatch = {
+  postData:{
+    contents:'{"source":"en","target":"fr","q":["hello","goodbye"]}'
+  }
+};
+
+/* Placed between the texts of a batch so they can be translated in one call */
+var SEPARATOR = '<SEP>';
+
 
 function doGet(e) {
   e = e || mock;
@@ -29,3 +38,33 @@ function doGet(e) {
 
   return ContentService.createTextOutput(translatedText).setMimeType(ContentService.MimeType.JSON);
 }
+
+/*
+ * Batch mode. Takes a JSON body like {"source":"en","target":"fr","q":["hello","goodbye"]}
+ * and returns a JSON array with the translation of each text, in the same order.
+ * The texts are joined into one translation call, and only translated one by one
+ * if the separators did not survive the translation.
+ */
+function doPost(e) {
+  e = e || mockBatch;
+
+  var request = JSON.parse(e.postData.contents);
+  var sourceTexts = request.q || [];
+  var sourceLang = request.source || '';
+  var targetLang = request.target || 'en';
+
+  var translatedTexts = [];
+  if (sourceTexts.length > 0) {
+    var joined = LanguageApp.translate(sourceTexts.join(SEPARATOR), sourceLang, targetLang, {contentType: 'html'});
+    translatedTexts = joined.split(SEPARATOR);
+  }
+
+  if (translatedTexts.length != sourceTexts.length) {
+    translatedTexts = [];
+    for (var i = 0; i < sourceTexts.length; i++) {
+      translatedTexts.push(LanguageApp.translate(sourceTexts[i], sourceLang, targetLang, {contentType: 'html'}));
+    }
+  }
+
+  return ContentService.createTextOutput(JSON.stringify(translatedTexts)).setMimeType(ContentService.MimeType.JSON);
+}